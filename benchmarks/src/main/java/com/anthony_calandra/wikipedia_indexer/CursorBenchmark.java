@@ -0,0 +1,104 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// AND and OR of two terms whose document frequencies differ by ratio, both walked to the end and
+// through top-k selection, where block-max pruning can skip most of the longer list.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CursorBenchmark {
+  private static final int UNIVERSE = 4000000;
+
+  @Param({"1000", "20000"})
+  int smallDf;
+
+  @Param({"1", "10", "100"})
+  int ratio;
+
+  private PostingList small;
+  private PostingList large;
+
+  @Setup
+  public void setup() throws IOException {
+    small = SyntheticCorpus.postingList(1, SyntheticCorpus.documents(11, UNIVERSE, smallDf));
+    large = SyntheticCorpus.postingList(2,
+        SyntheticCorpus.documents(12, UNIVERSE, Math.min(UNIVERSE, smallDf * ratio)));
+  }
+
+  private DocCursor term(PostingList postings) throws IOException {
+    return new TermCursor(postings, Math.log((double) UNIVERSE / (1 + postings.getDf())));
+  }
+
+  private static int drain(DocCursor cursor) throws IOException {
+    int hits = 0;
+    long target = 0;
+    while (cursor.advance(target, Double.NEGATIVE_INFINITY) != DocCursor.NO_MORE_DOCS) {
+      hits++;
+      target = cursor.offset() + 1;
+    }
+
+    return hits;
+  }
+
+  @Benchmark
+  public int and() throws IOException {
+    return drain(new AndCursor(term(large), term(small)));
+  }
+
+  @Benchmark
+  public int or() throws IOException {
+    return drain(new OrCursor(term(large), term(small)));
+  }
+
+  @Benchmark
+  public List<Article> andTopK() throws IOException {
+    return ArticleRetriever.collectTopResults(new AndCursor(term(large), term(small)), 10);
+  }
+
+  @Benchmark
+  public List<Article> orTopK() throws IOException {
+    return ArticleRetriever.collectTopResults(new OrCursor(term(large), term(small)), 10);
+  }
+
+  @Benchmark
+  public List<Article> termTopK() throws IOException {
+    return ArticleRetriever.collectTopResults(term(large), 10);
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import io.bespin.java.util.Tokenizer;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tl.lin.data.fd.Object2IntFrequencyDistribution;
+import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
+import tl.lin.data.pair.PairOfObjectInt;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The per-article work of the index mapper: parsing the id out of the line bytes, tokenizing the
+// body and counting terms. The Hadoop context is left out; what the mapper emits is handed to a blackhole.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MapperBenchmark {
+  private Text[] lines;
+  private int next;
+  private final Object2IntFrequencyDistribution<String> termCounts =
+      new Object2IntFrequencyDistributionEntry<>();
+
+  @Setup
+  public void setup() {
+    String[] collection = new SyntheticCorpus(1, 50000).nextLines(1024, 400);
+    lines = new Text[collection.length];
+    for (int i = 0; i < collection.length; i++) {
+      lines[i] = new Text(collection[i]);
+    }
+  }
+
+  @Benchmark
+  public void map(Blackhole blackhole) throws IOException {
+    next = (next + 1) & (lines.length - 1);
+    byte[] bytes = lines[next].getBytes();
+    int length = lines[next].getLength();
+    int tab = BuildWikipediaIndex.findTab(bytes, 0, length);
+    int articleId = BuildWikipediaIndex.parseArticleId(bytes, 0, tab);
+    List<String> tokens = Tokenizer.tokenize(Text.decode(bytes, tab + 1, length - tab - 1));
+
+    termCounts.clear();
+    for (String token : tokens) {
+      termCounts.increment(token);
+    }
+
+    for (PairOfObjectInt<String> e : termCounts) {
+      blackhole.consume(e.getLeftElement());
+      blackhole.consume((float) e.getRightElement() / tokens.size());
+    }
+
+    blackhole.consume(articleId);
+  }
+}
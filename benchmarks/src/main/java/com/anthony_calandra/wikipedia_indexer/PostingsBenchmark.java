@@ -0,0 +1,95 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding a whole posting list of df entries.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PostingsBenchmark {
+  @Param({"100", "10000", "1000000"})
+  int df;
+
+  private long[] offsets;
+  private float[] tfs;
+  private int[] articleIds;
+  private PostingList postings;
+  private final PostingsWriter writer = new PostingsWriter();
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  @Setup
+  public void setup() throws IOException {
+    int[] documents = SyntheticCorpus.documents(1, df * 4, df);
+    Random random = new Random(2);
+    offsets = new long[df];
+    tfs = new float[df];
+    articleIds = new int[df];
+    for (int i = 0; i < df; i++) {
+      offsets[i] = (long) documents[i] * SyntheticCorpus.AVERAGE_LINE_BYTES;
+      tfs[i] = (1 + random.nextInt(20)) / 500f;
+      articleIds[i] = documents[i];
+    }
+
+    postings = SyntheticCorpus.postingList(3, documents);
+  }
+
+  @Benchmark
+  public int encode() throws IOException {
+    writer.reset();
+    out.reset();
+    for (int i = 0; i < df; i++) {
+      writer.add(offsets[i], tfs[i], articleIds[i]);
+    }
+
+    writer.writeTo(out);
+    return out.size();
+  }
+
+  @Benchmark
+  public void decode(Blackhole blackhole) throws IOException {
+    PostingsReader reader = new PostingsReader(postings);
+    while (reader.nextBlock()) {
+      blackhole.consume(reader.offsets());
+      blackhole.consume(reader.tfs());
+      blackhole.consume(reader.articleIds());
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Fetching the preview line of a random result, from the snippet store and from the raw and block
+// compressed collections.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SnippetBenchmark {
+  private static final int ARTICLES = 20000;
+
+  private File directory;
+  private long[] offsets;
+  private int next;
+  private SnippetStore snippets;
+  private CollectionReader raw;
+  private CollectionReader compressed;
+  private final byte[] lineBuffer = new byte[SnippetStore.PREFIX_BYTES];
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("snippet-benchmark").toFile();
+    File collection = new File(directory, "collection.csv");
+    long[] lineOffsets = SyntheticCorpus.writeCollection(collection,
+        new SyntheticCorpus(1, 50000).nextLines(ARTICLES, 400));
+
+    // Visit the lines in a fixed random order so caches see a realistic access pattern.
+    Random random = new Random(2);
+    offsets = new long[1 << 16];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = lineOffsets[random.nextInt(lineOffsets.length)];
+    }
+
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path collectionPath = new Path(collection.getPath());
+    Path compressedPath = new Path(directory.getPath(), "collection.wbc");
+    Path indexPath = new Path(directory.getPath(), "index");
+    SnippetStore.build(fs, collectionPath, indexPath);
+    BlockCompressedCollection.convert(fs.getConf(), fs, collectionPath, compressedPath, "deflate",
+        65536);
+    snippets = SnippetStore.open(fs, indexPath);
+    raw = CollectionReader.open(fs, collectionPath);
+    compressed = CollectionReader.open(fs, compressedPath);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    snippets.close();
+    raw.close();
+    compressed.close();
+    FileUtil.fullyDelete(directory);
+  }
+
+  private long nextOffset() {
+    next = (next + 1) & (offsets.length - 1);
+    return offsets[next];
+  }
+
+  @Benchmark
+  public String snippetStore() throws IOException {
+    return snippets.get(nextOffset());
+  }
+
+  @Benchmark
+  public String rawCollection() throws IOException {
+    return SnippetStore.preview(lineBuffer, raw.readLinePrefix(nextOffset(), lineBuffer));
+  }
+
+  @Benchmark
+  public String blockCompressedCollection() throws IOException {
+    return SnippetStore.preview(lineBuffer, compressed.readLinePrefix(nextOffset(), lineBuffer));
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+// Generates a Wikipedia-like corpus from a seed, so benchmarks run offline and see the same data
+// on every run. Words are pronounceable made-up tokens drawn from a Zipf distribution, which
+// gives the usual mix of a few huge posting lists and a long tail of tiny ones.
+final class SyntheticCorpus {
+  private static final String[] ONSETS =
+      {"b", "c", "d", "f", "g", "h", "k", "l", "m", "n", "p", "r", "s", "t", "v", "st", "tr", "br"};
+  private static final String[] VOWELS = {"a", "e", "i", "o", "u", "ia", "ou"};
+  // Average line length of the real collection, used to space synthetic offsets.
+  static final int AVERAGE_LINE_BYTES = 2048;
+
+  private final Random random;
+  private final String[] vocabulary;
+  private final double[] cumulative;
+
+  SyntheticCorpus(long seed, int vocabularySize) {
+    random = new Random(seed);
+    vocabulary = new String[vocabularySize];
+    for (int i = 0; i < vocabularySize; i++) {
+      vocabulary[i] = word(i);
+    }
+
+    cumulative = new double[vocabularySize];
+    double sum = 0;
+    for (int i = 0; i < vocabularySize; i++) {
+      sum += 1.0 / (i + 1);
+      cumulative[i] = sum;
+    }
+
+    for (int i = 0; i < vocabularySize; i++) {
+      cumulative[i] /= sum;
+    }
+  }
+
+  // The rank-th most frequent word; distinct for every rank.
+  static String word(int rank) {
+    StringBuilder word = new StringBuilder();
+    int n = rank;
+    do {
+      word.append(ONSETS[n % ONSETS.length]);
+      n /= ONSETS.length;
+      word.append(VOWELS[n % VOWELS.length]);
+      n /= VOWELS.length;
+    } while (n > 0);
+
+    return word.toString();
+  }
+
+  String nextWord() {
+    int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+    return vocabulary[rank >= 0 ? rank : Math.min(-rank - 1, vocabulary.length - 1)];
+  }
+
+  // An article body of roughly meanWords words, with sentence capitalization and punctuation so
+  // the tokenizer has real work to do.
+  String nextArticle(int meanWords) {
+    int words = Math.max(1, (int) (meanWords * (0.5 + random.nextDouble())));
+    StringBuilder article = new StringBuilder(words * 8);
+    boolean sentenceStart = true;
+    for (int i = 0; i < words; i++) {
+      String word = nextWord();
+      if (sentenceStart) {
+        article.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+      } else {
+        article.append(word);
+      }
+
+      sentenceStart = random.nextInt(12) == 0;
+      article.append(sentenceStart ? ". " : random.nextInt(20) == 0 ? ", " : " ");
+    }
+
+    return article.toString();
+  }
+
+  // Collection lines in the indexer's input format: "id\tbody".
+  String[] nextLines(int count, int meanWords) {
+    String[] lines = new String[count];
+    for (int i = 0; i < count; i++) {
+      lines[i] = (10000 + i) + "\t" + nextArticle(meanWords);
+    }
+
+    return lines;
+  }
+
+  // Writes lines as a collection file and returns the byte offset of every line.
+  static long[] writeCollection(File file, String[] lines) throws IOException {
+    long[] offsets = new long[lines.length];
+    long offset = 0;
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      for (int i = 0; i < lines.length; i++) {
+        byte[] line = (lines[i] + "\n").getBytes(StandardCharsets.UTF_8);
+        offsets[i] = offset;
+        out.write(line);
+        offset += line.length;
+      }
+    }
+
+    return offsets;
+  }
+
+  // Picks about df of the universe documents at random. Document d sits at offset
+  // d * AVERAGE_LINE_BYTES, so lists drawn from the same universe intersect like real terms do.
+  static int[] documents(long seed, int universe, int df) {
+    Random random = new Random(seed);
+    int[] documents = new int[df];
+    int count = 0;
+    for (int d = 0; d < universe && count < df; d++) {
+      // Selection sampling keeps the result sorted and exactly df long.
+      if (random.nextInt(universe - d) < df - count) {
+        documents[count++] = d;
+      }
+    }
+
+    return documents;
+  }
+
+  static PostingList postingList(long seed, int[] documents) throws IOException {
+    Random random = new Random(seed);
+    PostingsWriter writer = new PostingsWriter();
+    for (int d : documents) {
+      writer.add((long) d * AVERAGE_LINE_BYTES, (1 + random.nextInt(20)) / 500f, d);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    return PostingList.parse(ByteBuffer.wrap(out.toByteArray()));
+  }
+}
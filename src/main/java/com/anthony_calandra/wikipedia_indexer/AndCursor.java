@@ -0,0 +1,85 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Intersection of two cursors. As with the original set based evaluation, an article's score is
+// the one from the right operand. The cursors leapfrog each other with advance(), so the cost is
+// driven by the rarer operand and only the scoring side is subject to threshold pruning.
+final class AndCursor implements DocCursor {
+  private final DocCursor left;
+  private final DocCursor right;
+  private long offset = -1;
+
+  AndCursor(DocCursor left, DocCursor right) {
+    this.left = left;
+    this.right = right;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return right.articleId();
+  }
+
+  @Override
+  public double score() {
+    return right.score();
+  }
+
+  @Override
+  public double maxScore() {
+    return right.maxScore();
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    if (offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    long candidate = right.advance(target, threshold);
+    while (candidate != NO_MORE_DOCS) {
+      long other = left.advance(candidate, Double.NEGATIVE_INFINITY);
+      if (other == candidate) {
+        offset = candidate;
+        return offset;
+      }
+
+      candidate = right.advance(other, threshold);
+    }
+
+    offset = NO_MORE_DOCS;
+    return offset;
+  }
+}
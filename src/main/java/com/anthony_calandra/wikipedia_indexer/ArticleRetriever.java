@@ -37,10 +37,10 @@ package com.anthony_calandra.wikipedia_indexer;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.Text;
@@ -59,132 +59,577 @@ import org.apache.log4j.Logger;
 
 import java.io.DataInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.Stack;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ArticleRetriever {
   private static final String DOCUMENT_COUNT_ID = "~";
   private static final Logger LOG = Logger.getLogger(ArticleRetriever.class);
+  private static final int MAX_EXPANSIONS = 32;
+  // Best score first, ties broken by article id.
+  static final Comparator<Article> RANKING = new Comparator<Article>() {
+    @Override
+    public int compare(Article article1, Article article2) {
+      int order = Double.compare(article2.getTfidf(), article1.getTfidf());
+      return order != 0 ? order : article1.compareTo(article2);
+    }
+  };
+  // Only opened for indexes without a term dictionary.
   private MapFile.Reader[] index;
-  private FSDataInputStream collection;
-  private Stack<Set<Article>> stack;
+  private TermDictionary dictionary;
+  // Articles of the most frequent terms, numbered by the snippet store; null if the index has none.
+  private BitmapIndex bitmaps;
+  // The partition data files, read directly at the positions the dictionary gives.
+  private ByteSource[] dataFiles;
+  // Blocks of the posting lists too large to store in the MapFiles; null where absent.
+  private ByteSource[] sideFiles;
+  private FileSystem fs;
+  private String collectionPath;
+  private CollectionReader collection;
+  private SnippetStore snippets;
+  // Set when the index is a single packed file, which all of the above are views of.
+  private PackedIndex pack;
   private int reducers;
+  private PartitionMap partitionMap;
+  private long numTotalDocuments;
   private int resultLimit;
+  // Only the start of a line is ever shown, so that is all that gets read.
+  private final byte[] lineBuffer = new byte[SnippetStore.PREFIX_BYTES];
+  // Optional and usually shared by every retriever over the same index.
+  private WeightedLruCache<String, PostingList> postingsCache;
+  private WeightedLruCache<String, List<Article>> resultCache;
+  // Fetches the terms of a query from different partitions concurrently when set.
+  private ExecutorService fetchExecutor;
+  // Usually shared by every retriever of the process.
+  private QueryMetrics metrics = new QueryMetrics();
+  // Indexes of the lines appended to the collection since this one was built, oldest first. They
+  // don't use the caches, which are keyed by term alone.
+  private final List<ArticleRetriever> deltas = new ArrayList<>();
+  private long collectionStart = -1;
+  private long collectionEnd = -1;
+
+  // The dfs and article count a query is scored with. They are summed over every index searched,
+  // so an article scores the same whichever index it is in.
+  static final class Statistics {
+    private final Map<String, Integer> dfs = new HashMap<>();
+    private long documents;
+
+    Map<String, Integer> getDfs() {
+      return dfs;
+    }
+
+    void add(Statistics other) {
+      for (Map.Entry<String, Integer> df : other.dfs.entrySet()) {
+        addDf(df.getKey(), df.getValue());
+      }
+
+      documents += other.documents;
+    }
+
+    private void addDf(String term, int df) {
+      Integer sum = dfs.get(term);
+      dfs.put(term, sum == null ? df : sum + df);
+    }
+  }
+
+  // A query's terms as looked up in one segment. With a dictionary, the entries found while
+  // collecting the dfs are kept, so fetching the lists does not look the terms up again.
+  static final class Lookup {
+    // Terms found in the dictionary map to their entry and missing terms to null.
+    private final Map<String, TermDictionary.Entry> entries = new HashMap<>();
+    // Null until the posting lists are fetched.
+    private Map<String, PostingList> postings;
+  }
 
   private ArticleRetriever() {}
 
+  // Each retriever owns its readers and collection stream, which are not safe to share between
+  // threads. Concurrent callers need one instance each.
+  static ArticleRetriever open(String indexPath, String collectionPath, int resultLimit,
+      FileSystem fs) throws IOException {
+    ArticleRetriever retriever = new ArticleRetriever();
+    retriever.initialize(indexPath, collectionPath, resultLimit, fs);
+    return retriever;
+  }
+
+  // Posting lists are cached as parsed but still encoded lists: cursors decode a block at a time
+  // and may skip most of them, so this keeps several times more terms in the same budget.
+  static WeightedLruCache<String, PostingList> newPostingsCache(long maxBytes) {
+    return new WeightedLruCache<>(maxBytes, new WeightedLruCache.Weigher<String, PostingList>() {
+      @Override
+      public long weigh(String term, PostingList postings) {
+        return 2L * term.length() + postings.sizeInBytes();
+      }
+    });
+  }
+
+  static WeightedLruCache<String, List<Article>> newResultCache(long maxBytes) {
+    return new WeightedLruCache<>(maxBytes, new WeightedLruCache.Weigher<String, List<Article>>() {
+      @Override
+      public long weigh(String query, List<Article> results) {
+        return 64 + 2L * query.length() + 48L * results.size();
+      }
+    });
+  }
+
+  void setCaches(WeightedLruCache<String, PostingList> postingsCache,
+      WeightedLruCache<String, List<Article>> resultCache) {
+    this.postingsCache = postingsCache;
+    this.resultCache = resultCache;
+  }
+
+  // Every posting list of a packed index is in the same region, so each partition's data file is
+  // that region. The partition map only groups lookups, which all go through the dictionary.
+  private void initializePacked(String indexPath, String collectionPath, int resultLimit,
+      FileSystem fs) throws IOException {
+    pack = PackedIndex.open(fs, new Path(indexPath));
+    reducers = pack.getPartitions();
+    index = new MapFile.Reader[reducers];
+    dataFiles = new ByteSource[reducers];
+    Arrays.fill(dataFiles, pack.getPostings());
+    sideFiles = pack.getSideFiles();
+    dictionary = pack.getDictionary();
+    snippets = pack.getSnippets();
+    bitmaps = pack.getBitmaps();
+    partitionMap = PartitionMap.hash(reducers);
+    numTotalDocuments = pack.getArticles();
+    collectionStart = pack.getCollectionStart();
+    collectionEnd = pack.getCollectionEnd();
+    if (snippets == null && collectionPath == null) {
+      pack.close();
+      throw new IOException("The index has no snippet store, a collection path is required.");
+    }
+
+    this.fs = fs;
+    this.collectionPath = collectionPath;
+    this.resultLimit = resultLimit;
+  }
+
+  // Each task only touches the reader of its own partition, so the executor can be shared by
+  // retrievers as long as each of them runs one query at a time.
+  void setFetchExecutor(ExecutorService fetchExecutor) {
+    this.fetchExecutor = fetchExecutor;
+    for (ArticleRetriever delta : deltas) {
+      delta.setFetchExecutor(fetchExecutor);
+    }
+  }
+
+  void setMetrics(QueryMetrics metrics) {
+    this.metrics = metrics;
+    for (ArticleRetriever delta : deltas) {
+      delta.setMetrics(metrics);
+    }
+  }
+
+  QueryMetrics getMetrics() {
+    return metrics;
+  }
+
   public static float byteArray2Float(byte[] bytes) {
     return ByteBuffer.wrap(bytes).getFloat();
   }
 
   private void initialize(String indexPath, String collectionPath, int resultLimit, FileSystem fs)
       throws IOException {
-    FileStatus[] status = fs.listStatus(new Path(indexPath));
+    if (fs.getFileStatus(new Path(indexPath)).isFile()) {
+      initializePacked(indexPath, collectionPath, resultLimit, fs);
+      return;
+    }
+
+    // Only the partition files; the index directory also holds _SUCCESS and side files such as
+    // the snippet store.
+    FileStatus[] status = fs.listStatus(new Path(indexPath), new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith("part-");
+      }
+    });
     if (status.length <= 0) {
       throw new IOException("Invalid status length. Possible index missing?");
     }
 
-    index = new MapFile.Reader[status.length - 1]; // Don't include _SUCCESS.
+    boolean hasDictionary = TermDictionary.exists(fs, new Path(indexPath));
+    index = new MapFile.Reader[status.length];
+    dataFiles = new ByteSource[status.length];
     for (int i = 0; i < status.length; i++) {
-      //LOG.info(status[i].getPath().getName());
-      if (status[i].getPath().getName().equals("_SUCCESS")) {
-        continue;
-      }
-
       // Extract the reducer id from the partition file name. Use that reducer id as the id into the
       // partitioned index. Order matters for lookups because in the index builder step, a term's
       // hashcode is used to partition the article data into one of the partition files.
       int reducerId = Integer.parseInt(status[i].getPath().getName().split("-")[2], 10);
-      index[reducerId] = new MapFile.Reader(status[i].getPath(), fs.getConf());
+      if (hasDictionary) {
+        dataFiles[reducerId] =
+            ByteSource.open(fs, new Path(status[i].getPath(), MapFile.DATA_FILE_NAME));
+      } else {
+        index[reducerId] = new MapFile.Reader(status[i].getPath(), fs.getConf());
+      }
       reducers++;
     }
 
-    collection = fs.open(new Path(collectionPath));
-    stack = new Stack<>();
+    if (hasDictionary) {
+      dictionary = TermDictionary.open(fs, new Path(indexPath));
+    }
+
+    sideFiles = new ByteSource[reducers];
+    for (int i = 0; i < reducers; i++) {
+      Path sideFile = IndexManifest.sideFilePath(new Path(indexPath), i);
+      if (fs.exists(sideFile)) {
+        sideFiles[i] = ByteSource.open(fs, sideFile);
+      }
+    }
+
+    // Indexes built before manifests existed keep their article count under a pseudo-term.
+    IndexManifest manifest = IndexManifest.read(fs, new Path(indexPath));
+    partitionMap = PartitionMap.hash(reducers);
+    if (manifest != null) {
+      manifest.validate(fs, new Path(indexPath), reducers);
+      numTotalDocuments = manifest.getArticles();
+      collectionStart = manifest.getCollectionStart();
+      collectionEnd = manifest.getCollectionEnd();
+      if (TermPartitioner.MAP.equals(manifest.getPartitioner())) {
+        partitionMap = PartitionMap.read(fs, new Path(indexPath, PartitionMap.FILE_NAME));
+        if (partitionMap.getPartitions() != reducers) {
+          throw new IOException("The partition map does not match the index partitions.");
+        }
+      }
+    } else {
+      numTotalDocuments = fetchNumberOfDocuments();
+    }
+
+    if (SnippetStore.exists(fs, new Path(indexPath))) {
+      snippets = SnippetStore.open(fs, new Path(indexPath));
+      if (BitmapIndex.exists(fs, new Path(indexPath))) {
+        bitmaps = BitmapIndex.open(fs, new Path(indexPath), snippets);
+      }
+    } else if (collectionPath == null) {
+      throw new IOException("The index has no snippet store, a collection path is required.");
+    }
+
+    // The collection is only opened if a line is missing from the snippet store.
+    this.fs = fs;
+    this.collectionPath = collectionPath;
     this.resultLimit = resultLimit;
+
+    // Results of the deltas are appended to those of this index, which only works if each one
+    // starts where the previous one ended.
+    long end = collectionEnd;
+    for (Path deltaPath : IndexManifest.deltaPaths(fs, new Path(indexPath))) {
+      ArticleRetriever delta = new ArticleRetriever();
+      delta.initialize(deltaPath.toString(), collectionPath, resultLimit, fs);
+      if (end < 0 || delta.collectionStart != end) {
+        delta.close();
+        throw new IOException("Delta index does not follow the index before it: " + deltaPath);
+      }
+
+      delta.metrics = metrics;
+      deltas.add(delta);
+      end = delta.collectionEnd;
+    }
+  }
+
+  void close() throws IOException {
+    for (ArticleRetriever delta : deltas) {
+      delta.close();
+    }
+
+    // A packed index owns its regions, dictionary, snippet store and bitmaps.
+    if (pack != null) {
+      pack.close();
+    } else {
+      for (MapFile.Reader reader : index) {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+
+      for (ByteSource dataFile : dataFiles) {
+        if (dataFile != null) {
+          dataFile.close();
+        }
+      }
+
+      if (dictionary != null) {
+        dictionary.close();
+      }
+
+      for (ByteSource sideFile : sideFiles) {
+        if (sideFile != null) {
+          sideFile.close();
+        }
+      }
+
+      if (bitmaps != null) {
+        bitmaps.close();
+      }
+
+      if (snippets != null) {
+        snippets.close();
+      }
+    }
+
+    if (collection != null) {
+      collection.close();
+    }
   }
 
   private void runQuery(String q) throws IOException {
-    String[] terms = q.split("\\s+");
-    for (String t : terms) {
-      if (t.equals("AND")) {
-        performAND();
-      } else if (t.equals("OR")) {
-        performOR();
-      } else {
-        pushTerm(t);
+    runQuery(q, resultLimit, System.out);
+  }
+
+  void runQuery(String q, int limit, PrintStream out) throws IOException {
+    List<Article> results = search(q, limit);
+    String[] lines = fetchLines(results);
+    out.println();
+    out.println("tf-idf\tArticle ID\tArticle");
+    for (int i = 0; i < lines.length; i++) {
+      out.println(results.get(i).getTfidf() + "\t" + lines[i]);
+    }
+  }
+
+  List<Article> search(String q, int limit) throws IOException {
+    long startTime = System.nanoTime();
+    metrics.increment(QueryMetrics.Counter.QUERIES, 1);
+    String[] terms = q.trim().split("\\s+");
+    // Queries that only differ in whitespace share a cache entry.
+    String cacheKey = null;
+    if (resultCache != null) {
+      cacheKey = limit + "\t" + String.join(" ", terms);
+      List<Article> cached = resultCache.get(cacheKey);
+      if (cached != null) {
+        metrics.increment(QueryMetrics.Counter.RESULT_CACHE_HITS, 1);
+        return cached;
       }
     }
 
-    System.out.println();
-    System.out.println("tf-idf\tArticle ID\tArticle");
-    ArrayList<Article> set = new ArrayList<>(stack.pop());
-    Collections.sort(set, new Comparator<Article>() {
-      @Override
-      public int compare(Article article1, Article article2) {
-        return Double.compare(article2.getTfidf(), article1.getTfidf());
+    QueryPlan plan = QueryPlan.parse(expandWildcards(terms, segments()));
+    metrics.record(QueryMetrics.Phase.PLAN, startTime);
+    Statistics statistics = new Statistics();
+    List<Lookup> lookups = collectStatistics(plan.terms(), statistics);
+    startTime = System.nanoTime();
+    plan = plan.optimize(statistics.getDfs());
+    metrics.record(QueryMetrics.Phase.PLAN, startTime);
+    List<Article> results = rank(plan, statistics, lookups, limit);
+    metrics.increment(QueryMetrics.Counter.RESULTS, results.size());
+    if (resultCache != null) {
+      results = Collections.unmodifiableList(results);
+      resultCache.put(cacheKey, results);
+    }
+
+    return results;
+  }
+
+  // Adds the dfs of the terms and the article count of this index and its deltas to statistics.
+  // With dictionaries the plan is made from their dfs before any posting list is read, so terms
+  // the plan drops are never fetched. Otherwise the posting lists are read now. The lookups are
+  // returned, per segment, for rank().
+  List<Lookup> collectStatistics(Set<String> terms, Statistics statistics) throws IOException {
+    long startTime = System.nanoTime();
+    boolean planFirst = hasDictionaries(segments());
+    List<Lookup> lookups = new ArrayList<>();
+    for (ArticleRetriever segment : segments()) {
+      Lookup lookup = new Lookup();
+      if (!planFirst) {
+        lookup.postings = segment.prefetchPostings(terms, lookup);
+      }
+
+      lookups.add(lookup);
+      for (Map.Entry<String, Integer> df
+          : segment.documentFrequencies(terms, lookup).entrySet()) {
+        statistics.addDf(df.getKey(), df.getValue());
+      }
+
+      statistics.documents += segment.numTotalDocuments;
+    }
+
+    metrics.record(QueryMetrics.Phase.LOOKUP, startTime);
+    return lookups;
+  }
+
+  // The best limit articles of this index and its deltas for an optimized plan, scored with the
+  // given statistics.
+  List<Article> rank(QueryPlan plan, Statistics statistics, List<Lookup> lookups, int limit)
+      throws IOException {
+    long startTime = System.nanoTime();
+    List<ArticleRetriever> segments = segments();
+    for (int i = 0; i < segments.size(); i++) {
+      Lookup lookup = lookups.get(i);
+      if (lookup.postings == null) {
+        lookup.postings = segments.get(i).prefetchPostings(plan.terms(), lookup);
+      }
+    }
+
+    metrics.record(QueryMetrics.Phase.LOOKUP, startTime);
+    // Cursors decode and merge postings as the top results are collected, so set operations and
+    // ranking are timed together.
+    startTime = System.nanoTime();
+    DocCursor[] cursors = new DocCursor[segments.size()];
+    for (int i = 0; i < cursors.length; i++) {
+      cursors[i] = segments.get(i).open(plan, lookups.get(i).postings, statistics.getDfs(),
+          statistics.documents);
+    }
+
+    List<Article> results = collectTopResults(
+        cursors.length == 1 ? cursors[0] : new ConcatCursor(cursors), limit);
+    metrics.record(QueryMetrics.Phase.EVALUATE, startTime);
+    return results;
+  }
+
+  // Rewrites each "prefix*" term into the OR of the MAX_EXPANSIONS most frequent terms starting
+  // with prefix in any of the given indexes. Without dictionaries, or without matches, the term
+  // is looked up as is and matches nothing.
+  static String[] expandWildcards(String[] tokens, List<ArticleRetriever> segments)
+      throws IOException {
+    if (!hasDictionaries(segments)) {
+      return tokens;
+    }
+
+    List<String> expanded = new ArrayList<>();
+    for (String t : tokens) {
+      List<String> matches = Collections.emptyList();
+      if (t.length() > 1 && t.endsWith("*")) {
+        matches = expand(t.substring(0, t.length() - 1), segments);
       }
-    });
 
-    int results = 0;
-    for (Article i : set) {
-      if (results == resultLimit) {
-        break;
+      if (matches.isEmpty()) {
+        expanded.add(t);
+        continue;
       }
 
-      String line = fetchLine(i.getArticleIndexOffset());
-      System.out.println(i.getTfidf() + "\t" + line);
-      results++;
+      for (int i = 0; i < matches.size(); i++) {
+        expanded.add(matches.get(i));
+        if (i > 0) {
+          expanded.add("OR");
+        }
+      }
     }
+
+    return expanded.toArray(new String[expanded.size()]);
   }
 
-  private void pushTerm(String term) throws IOException {
-    stack.push(fetchDocumentSet(term));
+  // The most frequent terms starting with prefix across the indexes. A term's df is summed over
+  // the indexes where it is among the most frequent matches.
+  private static List<String> expand(String prefix, List<ArticleRetriever> segments)
+      throws IOException {
+    final Map<String, Long> dfs = new HashMap<>();
+    for (ArticleRetriever segment : segments) {
+      for (TermDictionary.Entry entry : segment.dictionary.expand(prefix, MAX_EXPANSIONS)) {
+        Long df = dfs.get(entry.getTerm());
+        dfs.put(entry.getTerm(), (df == null ? 0 : df) + entry.getDf());
+      }
+    }
+
+    List<String> matches = new ArrayList<>(dfs.keySet());
+    Collections.sort(matches, new Comparator<String>() {
+      @Override
+      public int compare(String t1, String t2) {
+        int order = Long.compare(dfs.get(t2), dfs.get(t1));
+        return order != 0 ? order : t1.compareTo(t2);
+      }
+    });
+
+    return matches.subList(0, Math.min(MAX_EXPANSIONS, matches.size()));
   }
 
-  private void performAND() {
-    Set<Article> s1 = stack.pop();
-    Set<Article> s2 = stack.pop();
-    s1.retainAll(s2);
-    stack.push(s1);
+  // This index followed by its deltas, in offset order.
+  List<ArticleRetriever> segments() {
+    List<ArticleRetriever> segments = new ArrayList<>();
+    segments.add(this);
+    segments.addAll(deltas);
+    return segments;
   }
 
-  private void performOR() {
-    Set<Article> s1 = stack.pop();
-    Set<Article> s2 = stack.pop();
-    Set<Article> sn = new TreeSet<>();
-    for (Article n : s1) {
-      sn.add(n);
+  private static boolean hasDictionaries(List<ArticleRetriever> segments) {
+    for (ArticleRetriever segment : segments) {
+      if (segment.dictionary == null) {
+        return false;
+      }
     }
 
-    for (Article n : s2) {
-      sn.add(n);
+    return true;
+  }
+
+  // Keeps the best limit articles in a min-heap. Once it is full, the worst score in it
+  // becomes the threshold handed to the cursors, which lets them skip whole posting blocks.
+  static List<Article> collectTopResults(DocCursor cursor, int limit) throws IOException {
+    // Not sized by limit, which may be far more than the number of matches.
+    PriorityQueue<Article> heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)),
+        Collections.reverseOrder(RANKING));
+    double threshold = Double.NEGATIVE_INFINITY;
+    long target = 0;
+    while (limit > 0 && cursor.advance(target, threshold) != DocCursor.NO_MORE_DOCS) {
+      // Only hits that make it into the heap are turned into objects.
+      double score = cursor.score();
+      int articleId = cursor.articleId();
+      if (heap.size() < limit) {
+        heap.add(new Article(cursor.offset(), articleId, score));
+      } else if (score > threshold
+          || (score == threshold && articleId < heap.peek().getArticleId())) {
+        heap.poll();
+        heap.add(new Article(cursor.offset(), articleId, score));
+      }
+
+      if (heap.size() == limit) {
+        threshold = heap.peek().getTfidf();
+      }
+
+      target = cursor.offset() + 1;
     }
 
-    stack.push(sn);
+    List<Article> results = new ArrayList<>(heap);
+    Collections.sort(results, RANKING);
+    return results;
   }
 
-  private Set<Article> fetchDocumentSet(String term) throws IOException {
-    Set<Article> set = new TreeSet<>();
-    for (Article article : fetchPostings(term)) {
-      set.add(article);
+  // Missing terms are left out. Fetched posting lists are used when there are any, otherwise the
+  // cached lists and the dictionary, whose entries are kept in lookup.
+  private Map<String, Integer> documentFrequencies(Set<String> terms, Lookup lookup)
+      throws IOException {
+    Map<String, Integer> dfs = new HashMap<>();
+    for (String term : terms) {
+      if (lookup.postings != null) {
+        PostingList list = lookup.postings.get(term);
+        if (list != null) {
+          dfs.put(term, list.getDf());
+        }
+
+        continue;
+      }
+
+      PostingList cached = postingsCache != null ? postingsCache.get(term) : null;
+      if (cached != null) {
+        dfs.put(term, cached.getDf());
+      } else {
+        TermDictionary.Entry entry = dictionary.get(term);
+        metrics.increment(QueryMetrics.Counter.TERM_LOOKUPS, 1);
+        lookup.entries.put(term, entry);
+        if (entry != null) {
+          dfs.put(term, entry.getDf());
+        }
+      }
     }
 
-    return set;
+    return dfs;
   }
 
   private int fetchNumberOfDocuments() throws IOException {
     Text key = new Text();
     BytesWritable value = new BytesWritable();
-    int partition = (DOCUMENT_COUNT_ID.hashCode() & Integer.MAX_VALUE) % reducers;
+    int partition = TermPartitioner.hashPartition(DOCUMENT_COUNT_ID, reducers);
 
     key.set(DOCUMENT_COUNT_ID);
     // Document count not found in the index.
@@ -198,60 +643,291 @@ public class ArticleRetriever {
     return WritableUtils.readVInt(postingInStream);
   }
 
-  private ArrayList<Article> fetchPostings(String term) throws IOException {
-    ArrayList<Article> postList = new ArrayList<>();
+  // Opens the plan over this index alone, scoring with the given dfs and article count.
+  private DocCursor open(QueryPlan plan, final Map<String, PostingList> postings,
+      final Map<String, Integer> dfs, final long documents) throws IOException {
+    return plan.open(new QueryPlan.TermCursors() {
+      @Override
+      public DocCursor open(String term) throws IOException {
+        PostingList list = postings.get(term);
+        // Term not found in the index.
+        if (list == null) {
+          return DocCursor.EMPTY;
+        }
+
+        return new TermCursor(list, Math.log((double) documents / (1 + dfs.get(term))), metrics);
+      }
+
+      @Override
+      public DocBitmap bitmap(String term) throws IOException {
+        return bitmaps != null ? bitmaps.get(term) : null;
+      }
+
+      @Override
+      public SnippetStore articles() {
+        return snippets;
+      }
+    });
+  }
+
+  // Looks up every distinct term of the query before any operator runs. Terms are grouped by
+  // partition and, with an executor, each partition's lookups run as one task, so a query pays
+  // roughly one lookup latency per partition touched instead of one per term. Missing terms map
+  // to null. Terms with an entry in lookup are not looked up in the dictionary again.
+  private Map<String, PostingList> prefetchPostings(Set<String> terms, final Lookup lookup)
+      throws IOException {
+    Map<String, PostingList> postings = new HashMap<>();
+    if (numTotalDocuments < 0) {
+      return postings;
+    }
+
+    List<List<String>> partitions = new ArrayList<>();
+    List<String>[] pending = newPartitionLists();
+    for (String t : terms) {
+      PostingList cached = postingsCache != null ? postingsCache.get(t) : null;
+      postings.put(t, cached);
+      if (cached != null) {
+        metrics.increment(QueryMetrics.Counter.POSTINGS_CACHE_HITS, 1);
+      } else {
+        List<String> partition = pending[partitionMap.partition(t)];
+        if (partition.isEmpty()) {
+          partitions.add(partition);
+        }
+
+        partition.add(t);
+      }
+    }
+
+    if (fetchExecutor == null || partitions.size() <= 1) {
+      for (List<String> partition : partitions) {
+        fetchPostings(partition, postings, lookup);
+      }
+
+      return postings;
+    }
+
+    // The calling thread takes the last partition itself rather than idling.
+    List<Future<Map<String, PostingList>>> futures = new ArrayList<>();
+    for (final List<String> partition : partitions.subList(0, partitions.size() - 1)) {
+      futures.add(fetchExecutor.submit(new Callable<Map<String, PostingList>>() {
+        @Override
+        public Map<String, PostingList> call() throws IOException {
+          return fetchPostings(partition, new HashMap<String, PostingList>(), lookup);
+        }
+      }));
+    }
+
+    Throwable failure = null;
+    try {
+      fetchPostings(partitions.get(partitions.size() - 1), postings, lookup);
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+    }
+
+    for (Map<String, PostingList> fetched : awaitAll(futures, failure, "failed to fetch posting lists")) {
+      postings.putAll(fetched);
+    }
+
+    return postings;
+  }
+
+  // Waits for every task, even after one has failed, since the tasks read through the caller's
+  // readers; an abandoned task could still be reading when they are closed. Throws the first
+  // failure, the caller's own (from running a task itself) included.
+  static <T> List<T> awaitAll(List<Future<T>> futures, Throwable failure, String message)
+      throws IOException {
+    List<T> results = new ArrayList<>();
+    boolean interrupted = false;
+    for (Future<T> future : futures) {
+      while (true) {
+        try {
+          results.add(future.get());
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+
+          break;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      if (failure == null) {
+        failure = new InterruptedIOException(message);
+      }
+    }
+
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException(message, failure);
+    }
+
+    return results;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<String>[] newPartitionLists() {
+    List<String>[] lists = new List[reducers];
+    for (int i = 0; i < reducers; i++) {
+      lists[i] = new ArrayList<>();
+    }
+
+    return lists;
+  }
+
+  // All terms must live in the same partition.
+  private Map<String, PostingList> fetchPostings(List<String> terms,
+      Map<String, PostingList> postings, Lookup lookup) throws IOException {
+    if (dictionary != null) {
+      for (String term : terms) {
+        PostingList list = null;
+        TermDictionary.Entry entry;
+        if (lookup.entries.containsKey(term)) {
+          entry = lookup.entries.get(term);
+        } else {
+          // Not looked up while the dfs were collected: they came from fetched lists, or the
+          // term's list was cached then.
+          entry = dictionary.get(term);
+          metrics.increment(QueryMetrics.Counter.TERM_LOOKUPS, 1);
+        }
+
+        if (entry != null) {
+          metrics.increment(QueryMetrics.Counter.POSTING_BYTES_READ, entry.getLength());
+          // Mapped data files hand out a view of the list rather than a copy.
+          list = PostingList.parse(
+              dataFiles[entry.getPartition()].buffer(entry.getPosition(), entry.getLength()),
+              sideFiles[entry.getPartition()]);
+          if (postingsCache != null) {
+            postingsCache.put(term, list);
+          }
+        }
+
+        postings.put(term, list);
+      }
+
+      return postings;
+    }
+
     Text key = new Text();
     BytesWritable value = new BytesWritable();
-    int partition = (term.hashCode() & Integer.MAX_VALUE) % reducers;
+    for (String term : terms) {
+      key.set(term);
+      PostingList list = null;
+      int partition = partitionMap.partition(term);
+      metrics.increment(QueryMetrics.Counter.TERM_LOOKUPS, 1);
+      if (index[partition].get(key, value) != null) {
+        metrics.increment(QueryMetrics.Counter.POSTING_BYTES_READ, value.getLength());
+        // The value is not reused after this, so the list can keep pointing into its bytes.
+        list = PostingList.parse(ByteBuffer.wrap(value.getBytes(), 0, value.getLength()),
+            sideFiles[partition]);
+        value = new BytesWritable();
+        if (postingsCache != null) {
+          postingsCache.put(term, list);
+        }
+      }
 
-    key.set(term);
-    // Term not found in the index.
-    if (index[partition].get(key, value) == null) {
-      return postList;
+      postings.put(term, list);
     }
 
-    int numTotalDocuments = fetchNumberOfDocuments();
-    if (numTotalDocuments < 0) {
-      return postList;
+    return postings;
+  }
+
+  public String fetchLine(long offset) throws IOException {
+    for (ArticleRetriever segment : segments()) {
+      if (segment.snippets != null) {
+        String line = segment.snippets.get(offset);
+        if (line != null) {
+          return line;
+        }
+      }
     }
 
-    byte[] bytes = value.getBytes();
-    ByteArrayInputStream postingByteArrayStream = new ByteArrayInputStream(bytes);
-    DataInputStream postingInStream = new DataInputStream(postingByteArrayStream);
+    if (collection == null) {
+      if (collectionPath == null) {
+        throw new IOException("Article at offset " + offset + " is not in the snippet store.");
+      }
 
-    int df = WritableUtils.readVInt(postingInStream);
-    long articleIndexOffset = 0;
-    for (int numDocs = 0; numDocs < df; numDocs++) {
-      long offsetGap = WritableUtils.readVLong(postingInStream);
-      float tf = byteArray2Float(WritableUtils.readCompressedByteArray(postingInStream));
-      int articleId = WritableUtils.readVInt(postingInStream);
-      double idf = Math.log((double) numTotalDocuments / (1 + df));
-      articleIndexOffset += offsetGap;
-      postList.add(new Article(articleIndexOffset, articleId, (double) tf * idf));
+      collection = CollectionReader.open(fs, new Path(collectionPath));
     }
 
-    return postList;
+    return SnippetStore.preview(lineBuffer, collection.readLinePrefix(offset, lineBuffer));
   }
 
-  public String fetchLine(long offset) throws IOException {
-    collection.seek(offset);
-    BufferedReader reader = new BufferedReader(new InputStreamReader(collection));
-    String d = reader.readLine();
-    return d.length() > 80 ? d.substring(0, 80) + "..." : d;
+  // Fetches the lines of the given results (returned in the same order). They are read in
+  // increasing offset order so the collection is traversed in a single forward pass.
+  String[] fetchLines(List<Article> results) throws IOException {
+    long startTime = System.nanoTime();
+    Integer[] order = new Integer[results.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    final List<Article> articles = results;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return Long.compare(articles.get(i1).getArticleIndexOffset(),
+                            articles.get(i2).getArticleIndexOffset());
+      }
+    });
+
+    String[] lines = new String[order.length];
+    for (int i : order) {
+      lines[i] = fetchLine(results.get(i).getArticleIndexOffset());
+    }
+
+    metrics.record(QueryMetrics.Phase.FETCH, startTime);
+    return lines;
   }
 
   private static final class Args {
-    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
-    String index;
+    @Option(name = "-index", metaVar = "[path]", required = true,
+        usage = "index path, repeated to search several shards as one index")
+    List<String> indexes = new ArrayList<>();
 
-    @Option(name = "-collection", metaVar = "[path]", required = true, usage = "collection path")
-    String collection;
+    @Option(name = "-collection", metaVar = "[path]",
+        usage = "collection path (only needed without a snippet store), one per -index")
+    List<String> collections = new ArrayList<>();
 
-    @Option(name = "-query", metaVar = "[term]", required = true, usage = "query")
+    @Option(name = "-query", metaVar = "[term]", usage = "query")
     String query;
 
+    @Option(name = "-queries", metaVar = "[path]", usage = "file of queries to run, one per line")
+    String queries;
+
+    @Option(name = "-output", metaVar = "[path]", usage = "write batch results as TSV")
+    String output;
+
+    @Option(name = "-threads", metaVar = "[num]", usage = "number of batch worker threads")
+    int threads = 1;
+
+    @Option(name = "-postingsCacheMB", metaVar = "[num]",
+        usage = "memory for posting lists shared by a batch, 0 to disable")
+    int postingsCacheMB = 512;
+
+    @Option(name = "-resultCacheMB", metaVar = "[num]",
+        usage = "memory for results of repeated batch queries, 0 to disable")
+    int resultCacheMB = 16;
+
     @Option(name = "-limit", metaVar = "[num]", usage = "max number of results")
     int resultLimit = 10;
+
+    @Option(name = "-fetchThreads", metaVar = "[num]",
+        usage = "threads looking up query terms in different partitions, 0 to look up serially")
+    int fetchThreads = 4;
+
+    @Option(name = "-metrics", usage = "print the time spent in each query phase to stderr")
+    boolean metrics = false;
   }
 
   public static void main(String[] argv) throws Exception {
@@ -266,18 +942,95 @@ public class ArticleRetriever {
       return;
     }
 
-    if (args.collection.endsWith(".gz")) {
-      System.out.println("gzipped collection is not seekable: use compressed version!");
+    for (String collection : args.collections) {
+      if (collection.endsWith(".gz")) {
+        System.out.println("gzipped collection is not seekable: use uncompressed or block compressed version!");
+        return;
+      }
+    }
+
+    if (!args.collections.isEmpty() && args.collections.size() != args.indexes.size()) {
+      System.err.println("Either no -collection or one for each -index is required.");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    if ((args.query == null) == (args.queries == null)) {
+      System.err.println("Exactly one of -query and -queries is required.");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    if (args.queries != null && args.indexes.size() > 1) {
+      System.err.println("Batches run against a single index.");
       return;
     }
 
     FileSystem fs = FileSystem.get(new Configuration());
-    ArticleRetriever inst = new ArticleRetriever();
-    inst.initialize(args.index, args.collection, args.resultLimit, fs);
+    ExecutorService fetchExecutor = null;
+    if (args.fetchThreads > 0) {
+      fetchExecutor = Executors.newFixedThreadPool(args.fetchThreads);
+    }
+
+    String collection = args.collections.isEmpty() ? null : args.collections.get(0);
+    if (args.indexes.size() > 1) {
+      FederatedRetriever federated = FederatedRetriever.open(args.indexes,
+          args.collections.isEmpty() ? null : args.collections, args.resultLimit, fetchExecutor,
+          fs);
+      System.out.println("Query: " + args.query);
+
+      long startTime = System.currentTimeMillis();
+      long elapsed;
+      try {
+        federated.runQuery(args.query, args.resultLimit, System.out);
+        // Closing the shards is not part of the query.
+        elapsed = System.currentTimeMillis() - startTime;
+      } finally {
+        federated.close();
+        if (fetchExecutor != null) {
+          fetchExecutor.shutdown();
+        }
+      }
+
+      System.out.println("\nquery completed in " + elapsed + "ms");
+      if (args.metrics) {
+        System.err.println(federated.getMetrics());
+      }
+
+      return;
+    }
+
+    if (args.queries != null) {
+      try {
+        QueryBatch.run(QueryBatch.readQueries(fs, new Path(args.queries)), args.indexes.get(0),
+            collection, args.resultLimit, Math.max(args.threads, 1),
+            args.postingsCacheMB * 1024L * 1024L, args.resultCacheMB * 1024L * 1024L,
+            fetchExecutor, fs, args.output != null ? new Path(args.output) : null);
+      } finally {
+        if (fetchExecutor != null) {
+          fetchExecutor.shutdown();
+        }
+      }
+
+      return;
+    }
+
+    ArticleRetriever inst = open(args.indexes.get(0), collection, args.resultLimit, fs);
+    inst.setFetchExecutor(fetchExecutor);
     System.out.println("Query: " + args.query);
 
     long startTime = System.currentTimeMillis();
-    inst.runQuery(args.query);
+    try {
+      inst.runQuery(args.query);
+    } finally {
+      if (fetchExecutor != null) {
+        fetchExecutor.shutdown();
+      }
+    }
+
     System.out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms");
+    if (args.metrics) {
+      System.err.println(inst.getMetrics());
+    }
   }
 }
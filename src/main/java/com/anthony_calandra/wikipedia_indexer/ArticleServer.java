@@ -0,0 +1,346 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.EmptyStackException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps the index open and answers queries over HTTP, e.g.
+//   curl 'http://localhost:8080/search?q=big+data+AND&limit=10'
+// Query metrics are served in Prometheus text format from /metrics and registered with JMX.
+// The response has the same format as ArticleRetriever's output. Every worker thread borrows a
+// retriever from a pool that holds one per thread, so readers are never shared concurrently.
+public class ArticleServer {
+  private static final Logger LOG = Logger.getLogger(ArticleServer.class);
+  private final BlockingQueue<ArticleRetriever> retrievers;
+  private final int resultLimit;
+  private final int maxLimit;
+  private final WeightedLruCache<String, PostingList> postingsCache;
+  private final WeightedLruCache<String, List<Article>> resultCache;
+  private final QueryMetrics metrics;
+  // Null for indexes without a manifest, including packed ones.
+  private final IndexManifest manifest;
+
+  private ArticleServer(BlockingQueue<ArticleRetriever> retrievers, int resultLimit, int maxLimit,
+      WeightedLruCache<String, PostingList> postingsCache,
+      WeightedLruCache<String, List<Article>> resultCache, QueryMetrics metrics,
+      IndexManifest manifest) {
+    this.retrievers = retrievers;
+    this.resultLimit = resultLimit;
+    this.maxLimit = maxLimit;
+    this.postingsCache = postingsCache;
+    this.resultCache = resultCache;
+    this.metrics = metrics;
+    this.manifest = manifest;
+  }
+
+  private final class SearchHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        Map<String, String> params = parseQueryString(exchange.getRequestURI().getRawQuery());
+        String query = params.get("q");
+        if (query == null || query.trim().isEmpty()) {
+          respond(exchange, 400, "missing query parameter: q\n");
+          return;
+        }
+
+        int limit = resultLimit;
+        if (params.containsKey("limit")) {
+          limit = Integer.parseInt(params.get("limit"));
+          if (limit < 1 || limit > maxLimit) {
+            respond(exchange, 400, "limit must be between 1 and " + maxLimit + "\n");
+            return;
+          }
+        }
+
+        respond(exchange, 200, runQuery(query.trim(), limit));
+      } catch (IllegalArgumentException | EmptyStackException e) {
+        // Also covers bad numbers and the bad escapes URLDecoder rejects.
+        respond(exchange, 400, "malformed request: " + e + "\n");
+      } catch (IOException e) {
+        LOG.error("Query failed.", e);
+        respond(exchange, 500, "query failed: " + e.getMessage() + "\n");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        respond(exchange, 503, "server shutting down\n");
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private final class StatsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        StringBuilder body = new StringBuilder();
+        body.append("postings cache: ").append(postingsCache == null ? "off" : postingsCache)
+            .append('\n');
+        body.append("result cache: ").append(resultCache == null ? "off" : resultCache)
+            .append('\n');
+        body.append("queries: ").append(metrics.get(QueryMetrics.Counter.QUERIES)).append(", ")
+            .append(metrics).append('\n');
+        if (manifest != null) {
+          for (int i = 0; i < manifest.getPartitions(); i++) {
+            body.append("partition ").append(i).append(": ")
+                .append(manifest.getPartitionTerms(i)).append(" terms");
+            if (manifest.getPartitionMaxDf(i) >= 0) {
+              body.append(", max df ").append(manifest.getPartitionMaxDf(i));
+            }
+
+            body.append('\n');
+          }
+        }
+
+        respond(exchange, 200, body.toString());
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private final class MetricsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        StringBuilder body = new StringBuilder();
+        metrics.writePrometheus(body);
+        writeCacheMetrics(body, "postings", postingsCache);
+        writeCacheMetrics(body, "result", resultCache);
+        respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", body.toString());
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private static void writeCacheMetrics(StringBuilder out, String cache,
+      WeightedLruCache<?, ?> stats) {
+    if (stats == null) {
+      return;
+    }
+
+    String prefix = "wikipedia_indexer_" + cache + "_cache_";
+    out.append("# TYPE ").append(prefix).append("hits_total counter\n")
+        .append(prefix).append("hits_total ").append(stats.getHits()).append('\n');
+    out.append("# TYPE ").append(prefix).append("misses_total counter\n")
+        .append(prefix).append("misses_total ").append(stats.getMisses()).append('\n');
+    out.append("# TYPE ").append(prefix).append("evictions_total counter\n")
+        .append(prefix).append("evictions_total ").append(stats.getEvictions()).append('\n');
+    out.append("# TYPE ").append(prefix).append("entries gauge\n")
+        .append(prefix).append("entries ").append(stats.size()).append('\n');
+    out.append("# TYPE ").append(prefix).append("bytes gauge\n")
+        .append(prefix).append("bytes ").append(stats.getWeight()).append('\n');
+  }
+
+  private String runQuery(String query, int limit) throws IOException, InterruptedException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(response, false, "UTF-8");
+    ArticleRetriever retriever = retrievers.take();
+    try {
+      out.println("Query: " + query);
+      long startTime = System.currentTimeMillis();
+      retriever.runQuery(query, limit, out);
+      out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms");
+    } finally {
+      retrievers.put(retriever);
+    }
+
+    out.flush();
+    return response.toString("UTF-8");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    respond(exchange, status, "text/plain; charset=utf-8", body);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static Map<String, String> parseQueryString(String rawQuery)
+      throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<>();
+    if (rawQuery == null) {
+      return params;
+    }
+
+    for (String pair : rawQuery.split("&")) {
+      int split = pair.indexOf('=');
+      if (split > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                   URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+      }
+    }
+
+    return params;
+  }
+
+  private static final class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    String index;
+
+    @Option(name = "-collection", metaVar = "[path]",
+        usage = "collection path (only needed without a snippet store)")
+    String collection;
+
+    @Option(name = "-host", metaVar = "[address]",
+        usage = "address to listen on, 0.0.0.0 for every interface")
+    String host = "127.0.0.1";
+
+    @Option(name = "-port", metaVar = "[num]", usage = "port to listen on")
+    int port = 8080;
+
+    @Option(name = "-threads", metaVar = "[num]", usage = "number of query threads")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-limit", metaVar = "[num]", usage = "default max number of results")
+    int resultLimit = 10;
+
+    @Option(name = "-maxLimit", metaVar = "[num]", usage = "largest limit a request may ask for")
+    int maxLimit = 1000;
+
+    @Option(name = "-postingsCacheMB", metaVar = "[num]",
+        usage = "memory for cached posting lists, 0 to disable")
+    int postingsCacheMB = 256;
+
+    @Option(name = "-resultCacheMB", metaVar = "[num]",
+        usage = "memory for cached query results, 0 to disable")
+    int resultCacheMB = 16;
+
+    @Option(name = "-fetchThreads", metaVar = "[num]",
+        usage = "threads looking up query terms in different partitions, 0 to look up serially")
+    int fetchThreads = Runtime.getRuntime().availableProcessors();
+  }
+
+  public static void main(String[] argv) throws Exception {
+    final Args args = new Args();
+    CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      return;
+    }
+
+    if (args.resultLimit < 1 || args.maxLimit < args.resultLimit) {
+      System.err.println("-limit must be at least 1 and at most -maxLimit");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    if (args.threads <= 0) {
+      System.err.println("-threads must be at least 1");
+      parser.printUsage(System.err);
+      return;
+    }
+
+    if (args.collection != null && args.collection.endsWith(".gz")) {
+      System.out.println("gzipped collection is not seekable: use uncompressed or block compressed version!");
+      return;
+    }
+
+    FileSystem fs = FileSystem.get(new Configuration());
+    // The caches are shared by the whole pool so a term fetched by one thread serves them all.
+    WeightedLruCache<String, PostingList> postingsCache = args.postingsCacheMB > 0
+        ? ArticleRetriever.newPostingsCache(args.postingsCacheMB * 1024L * 1024L) : null;
+    WeightedLruCache<String, List<Article>> resultCache = args.resultCacheMB > 0
+        ? ArticleRetriever.newResultCache(args.resultCacheMB * 1024L * 1024L) : null;
+    final ExecutorService fetchExecutor =
+        args.fetchThreads > 0 ? Executors.newFixedThreadPool(args.fetchThreads) : null;
+    QueryMetrics metrics = new QueryMetrics();
+    metrics.register();
+    final BlockingQueue<ArticleRetriever> retrievers = new ArrayBlockingQueue<>(args.threads);
+    for (int i = 0; i < args.threads; i++) {
+      ArticleRetriever retriever =
+          ArticleRetriever.open(args.index, args.collection, args.resultLimit, fs);
+      retriever.setCaches(postingsCache, resultCache);
+      retriever.setFetchExecutor(fetchExecutor);
+      retriever.setMetrics(metrics);
+      retrievers.add(retriever);
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(args.threads);
+    final HttpServer server = HttpServer.create(new InetSocketAddress(args.host, args.port), 0);
+    ArticleServer articleServer =
+        new ArticleServer(retrievers, args.resultLimit, args.maxLimit, postingsCache,
+            resultCache, metrics, IndexManifest.read(fs, new Path(args.index)));
+    server.createContext("/search", articleServer.new SearchHandler());
+    server.createContext("/stats", articleServer.new StatsHandler());
+    server.createContext("/metrics", articleServer.new MetricsHandler());
+    server.setExecutor(executor);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop(0);
+        executor.shutdown();
+        if (fetchExecutor != null) {
+          fetchExecutor.shutdown();
+        }
+
+        for (ArticleRetriever retriever : retrievers) {
+          try {
+            retriever.close();
+          } catch (IOException e) {
+            LOG.warn("Failed to close retriever.", e);
+          }
+        }
+      }
+    });
+
+    server.start();
+    LOG.info("Serving " + args.index + " on " + args.host + ":" + args.port + " with "
+        + args.threads + " threads");
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// An AND or OR of terms that all have bitmaps. The matching articles are computed up front with
+// word operations on the bitmaps; only the articles the cursor lands on are looked up in a
+// posting list, that of the operand that scores them: the last one for an AND, the last one
+// containing the article for an OR.
+final class BitmapCursor implements DocCursor {
+  private final DocBitmap matches;
+  private final DocBitmap[] operands;
+  private final DocCursor[] cursors;
+  private final boolean intersection;
+  private final SnippetStore articles;
+  private DocCursor current;
+  private int article = -1;
+  private long offset = -1;
+
+  // cursors are the term cursors of the operands, in query order.
+  BitmapCursor(DocBitmap[] operands, DocCursor[] cursors, boolean intersection,
+      SnippetStore articles) {
+    DocBitmap matches = operands[0];
+    for (int i = 1; i < operands.length; i++) {
+      matches = intersection ? matches.and(operands[i]) : matches.or(operands[i]);
+    }
+
+    this.matches = matches;
+    this.operands = operands;
+    this.cursors = cursors;
+    this.intersection = intersection;
+    this.articles = articles;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return current.articleId();
+  }
+
+  @Override
+  public double score() {
+    return current.score();
+  }
+
+  @Override
+  public double maxScore() {
+    if (intersection) {
+      return cursors[cursors.length - 1].maxScore();
+    }
+
+    double maxScore = Double.NEGATIVE_INFINITY;
+    for (DocCursor cursor : cursors) {
+      maxScore = Math.max(maxScore, cursor.maxScore());
+    }
+
+    return maxScore;
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    if (offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    if (maxScore() < threshold) {
+      offset = NO_MORE_DOCS;
+      return offset;
+    }
+
+    // Results are collected in order, so the next article is usually the one after this one.
+    long from = target == offset + 1 ? article + 1 : articles.ceiling(target);
+    for (int a = from < Integer.MAX_VALUE ? matches.next((int) from) : -1; a >= 0;
+         a = matches.next(a + 1)) {
+      int scorer = cursors.length - 1;
+      while (!intersection && !operands[scorer].contains(a)) {
+        scorer--;
+      }
+
+      long articleOffset = articles.offset(a);
+      cursors[scorer].advance(articleOffset, Double.NEGATIVE_INFINITY);
+      if (cursors[scorer].score() >= threshold) {
+        current = cursors[scorer];
+        article = a;
+        offset = articleOffset;
+        return offset;
+      }
+    }
+
+    offset = NO_MORE_DOCS;
+    return offset;
+  }
+}
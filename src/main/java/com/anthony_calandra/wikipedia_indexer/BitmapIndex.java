@@ -0,0 +1,221 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The articles of every frequent term as a DocBitmap, in addition to its posting list. Articles
+// are numbered by their entry in the snippet store, which is in offset order, so bitmaps can only
+// be built for indexes that have one.
+//
+//   int MAGIC, int VERSION
+//   bitmaps  one serialized DocBitmap per term
+//   table    VLong term count, then per term: VLong length, UTF-8 term, VLong position, VLong
+//            bitmap length
+//   long table position, long number of articles in the snippet store
+final class BitmapIndex implements Closeable {
+  static final String FILE_NAME = "bitmaps";
+  private static final int MAGIC = 0x424d4150;
+  private static final int VERSION = 1;
+  private static final int TRAILER_SIZE = 16;
+  // Terms in fewer articles than this (or than 1/MIN_DENSITY of them) are cheaper to merge as
+  // posting lists.
+  private static final int MIN_DF = 4096;
+  private static final int MIN_DENSITY = 64;
+  // Decoded bitmaps of the terms most recently queried, which are usually queried again.
+  private static final long CACHE_BYTES = 32L * 1024 * 1024;
+  private final ByteSource source;
+  private final Map<String, long[]> bitmaps;
+  private final WeightedLruCache<String, DocBitmap> cache =
+      new WeightedLruCache<>(CACHE_BYTES, new WeightedLruCache.Weigher<String, DocBitmap>() {
+        @Override
+        public long weigh(String term, DocBitmap bitmap) {
+          return 2L * term.length() + bitmap.sizeInBytes();
+        }
+      });
+
+  private BitmapIndex(ByteSource source, Map<String, long[]> bitmaps) {
+    this.source = source;
+    this.bitmaps = bitmaps;
+  }
+
+  static boolean exists(FileSystem fs, Path indexPath) throws IOException {
+    return fs.exists(new Path(indexPath, FILE_NAME));
+  }
+
+  static BitmapIndex open(FileSystem fs, Path indexPath, SnippetStore articles)
+      throws IOException {
+    Path path = new Path(indexPath, FILE_NAME);
+    ByteSource source = fs instanceof LocalFileSystem
+        ? ByteSource.open(fs, path) : ByteSource.load(fs, path);
+    return open(source, articles, path.toString());
+  }
+
+  // Takes ownership of source, which name describes in errors.
+  static BitmapIndex open(ByteSource source, SnippetStore articles, String name)
+      throws IOException {
+    try {
+      if (source.length() < 8 + TRAILER_SIZE || source.readLong(0) >>> 32 != MAGIC) {
+        throw new IOException("Not a bitmap index: " + name);
+      }
+
+      if ((int) source.readLong(0) > VERSION) {
+        throw new IOException("Unsupported bitmap index version: " + (int) source.readLong(0));
+      }
+
+      if (source.readLong(source.length() - 8) != articles.size()) {
+        throw new IOException("Bitmap index does not match the snippet store: " + name);
+      }
+
+      long tablePosition = source.readLong(source.length() - TRAILER_SIZE);
+      byte[] table = new byte[(int) (source.length() - TRAILER_SIZE - tablePosition)];
+      source.read(tablePosition, table, 0, table.length);
+      ByteBuffer buffer = ByteBuffer.wrap(table);
+      Map<String, long[]> bitmaps = new HashMap<>();
+      for (long n = PostingsFormat.readVLong(buffer); n > 0; n--) {
+        byte[] term = new byte[(int) PostingsFormat.readVLong(buffer)];
+        buffer.get(term);
+        bitmaps.put(new String(term, StandardCharsets.UTF_8),
+            new long[] {PostingsFormat.readVLong(buffer), PostingsFormat.readVLong(buffer)});
+      }
+
+      return new BitmapIndex(source, bitmaps);
+    } catch (IOException e) {
+      source.close();
+      throw e;
+    }
+  }
+
+  // Returns null if the term has no bitmap.
+  DocBitmap get(String term) throws IOException {
+    long[] location = bitmaps.get(term);
+    if (location == null) {
+      return null;
+    }
+
+    DocBitmap bitmap = cache.get(term);
+    if (bitmap == null) {
+      byte[] bytes = new byte[(int) location[1]];
+      source.read(location[0], bytes, 0, bytes.length);
+      bitmap = DocBitmap.read(ByteBuffer.wrap(bytes));
+      cache.put(term, bitmap);
+    }
+
+    return bitmap;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // Builds the bitmaps of an index that already has its term dictionary and snippet store.
+  static void build(FileSystem fs, Path indexPath) throws IOException {
+    Map<Integer, ByteSource> dataFiles = new HashMap<>();
+    Map<Integer, ByteSource> sideFiles = new HashMap<>();
+    try (TermDictionary dictionary = TermDictionary.open(fs, indexPath);
+         SnippetStore articles = SnippetStore.open(fs, indexPath);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+             fs.create(new Path(indexPath, FILE_NAME), true)))) {
+      List<TermDictionary.Entry> terms = dictionary.frequentTerms(
+          (int) Math.max(MIN_DF, articles.size() / MIN_DENSITY));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      long[] positions = new long[terms.size() + 1];
+      positions[0] = 8;
+      for (int i = 0; i < terms.size(); i++) {
+        TermDictionary.Entry entry = terms.get(i);
+        int partition = entry.getPartition();
+        if (!dataFiles.containsKey(partition)) {
+          Path sideFile = IndexManifest.sideFilePath(indexPath, partition);
+          dataFiles.put(partition, ByteSource.open(fs,
+              new Path(IndexManifest.partitionPath(indexPath, partition), MapFile.DATA_FILE_NAME)));
+          sideFiles.put(partition, fs.exists(sideFile) ? ByteSource.open(fs, sideFile) : null);
+        }
+
+        byte[] bytes = new byte[entry.getLength()];
+        dataFiles.get(partition).read(entry.getPosition(), bytes, 0, bytes.length);
+        PostingsReader reader = new PostingsReader(
+            PostingList.parse(ByteBuffer.wrap(bytes), sideFiles.get(partition)));
+        DocBitmap.Builder bitmap = new DocBitmap.Builder();
+        // The offsets of a list increase, so its articles are found by walking the store forward.
+        long article = -1;
+        long articleOffset = -1;
+        while (reader.nextBlock()) {
+          for (int j = 0; j < reader.blockSize(); j++) {
+            long offset = reader.offsets()[j];
+            while (articleOffset < offset && ++article < articles.size()) {
+              articleOffset = articles.offset(article);
+            }
+
+            if (articleOffset != offset) {
+              throw new IOException("Article at offset " + offset
+                  + " is not in the snippet store.");
+            }
+
+            bitmap.add((int) article);
+          }
+        }
+
+        serialized.reset();
+        bitmap.build().write(new DataOutputStream(serialized));
+        serialized.writeTo(out);
+        positions[i + 1] = positions[i] + serialized.size();
+      }
+
+      PostingsFormat.writeVLong(out, terms.size());
+      for (int i = 0; i < terms.size(); i++) {
+        byte[] term = terms.get(i).getTerm().getBytes(StandardCharsets.UTF_8);
+        PostingsFormat.writeVLong(out, term.length);
+        out.write(term);
+        PostingsFormat.writeVLong(out, positions[i]);
+        PostingsFormat.writeVLong(out, positions[i + 1] - positions[i]);
+      }
+
+      out.writeLong(positions[terms.size()]);
+      out.writeLong(articles.size());
+    } finally {
+      for (ByteSource source : dataFiles.values()) {
+        source.close();
+      }
+
+      for (ByteSource source : sideFiles.values()) {
+        if (source != null) {
+          source.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A collection split into fixed-size blocks of raw bytes that are compressed independently, so
+// any line can be read by decompressing only the block(s) it lives in. Blocks are cut at exact
+// multiples of the block size, which keeps the offsets recorded in the index valid: the block of
+// an offset is offset / blockSize.
+//
+//   header  int MAGIC, int VERSION, int block size, UTF codec class name
+//   blocks  the compressed blocks, back to back
+//   index   long file position of every block plus one for the end of the last block
+//   footer  long uncompressed length, long index position, int MAGIC
+//
+// Convert a collection with:
+//   java -cp target/wikipedia-indexer-1.0.jar \
+//     com.anthony_calandra.wikipedia_indexer.BlockCompressedCollection \
+//     -input data/collection.csv -output data/collection.wbc -codec deflate
+public class BlockCompressedCollection extends CollectionReader {
+  private static final Logger LOG = Logger.getLogger(BlockCompressedCollection.class);
+  private static final int MAGIC = 0x57424331;
+  private static final int VERSION = 1;
+  private static final int FOOTER_SIZE = 20;
+  private static final int DEFAULT_CACHED_BLOCKS = 16;
+  private final FSDataInputStream in;
+  private final CompressionCodec codec;
+  private final Decompressor decompressor;
+  private final int blockSize;
+  private final long length;
+  private final long[] blockPositions;
+  private final Map<Integer, byte[]> blockCache;
+
+  private BlockCompressedCollection(FSDataInputStream in, CompressionCodec codec, int blockSize,
+      long length, long[] blockPositions, final int cachedBlocks) {
+    this.in = in;
+    this.codec = codec;
+    this.decompressor = CodecPool.getDecompressor(codec);
+    this.blockSize = blockSize;
+    this.length = length;
+    this.blockPositions = blockPositions;
+    this.blockCache = new LinkedHashMap<Integer, byte[]>(cachedBlocks, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > cachedBlocks;
+      }
+    };
+  }
+
+  static boolean isBlockCompressed(FSDataInputStream in) throws IOException {
+    byte[] magic = new byte[4];
+    return in.read(0, magic, 0, magic.length) == magic.length
+        && ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8
+            | (magic[3] & 0xFF)) == MAGIC;
+  }
+
+  static BlockCompressedCollection open(Configuration conf, FSDataInputStream in,
+      long fileLength) throws IOException {
+    in.seek(0);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a block compressed collection.");
+    }
+
+    int version = in.readInt();
+    if (version > VERSION) {
+      throw new IOException("Unsupported block compressed collection version: " + version);
+    }
+
+    int blockSize = in.readInt();
+    CompressionCodec codec;
+    try {
+      codec = (CompressionCodec) ReflectionUtils.newInstance(Class.forName(in.readUTF()), conf);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Collection codec is not available.", e);
+    }
+
+    in.seek(fileLength - FOOTER_SIZE);
+    long length = in.readLong();
+    long indexPosition = in.readLong();
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Block compressed collection is truncated.");
+    }
+
+    long[] blockPositions = new long[(int) ((length + blockSize - 1) / blockSize) + 1];
+    in.seek(indexPosition);
+    for (int i = 0; i < blockPositions.length; i++) {
+      blockPositions[i] = in.readLong();
+    }
+
+    return new BlockCompressedCollection(
+        in, codec, blockSize, length, blockPositions, DEFAULT_CACHED_BLOCKS);
+  }
+
+  @Override
+  int readLinePrefix(long offset, byte[] buffer) throws IOException {
+    int copied = 0;
+    while (copied < buffer.length && offset < length) {
+      byte[] block = fetchBlock((int) (offset / blockSize));
+      int start = (int) (offset % blockSize);
+      int available = Math.min(block.length - start, buffer.length - copied);
+      int line = lineLength(block, start, available);
+      System.arraycopy(block, start, buffer, copied, line);
+      copied += line;
+      if (line < available) {
+        break;
+      }
+
+      // The line continues in the next block.
+      offset += line;
+    }
+
+    return copied;
+  }
+
+  private byte[] fetchBlock(int block) throws IOException {
+    byte[] bytes = blockCache.get(block);
+    if (bytes != null) {
+      return bytes;
+    }
+
+    byte[] compressed = new byte[(int) (blockPositions[block + 1] - blockPositions[block])];
+    in.readFully(blockPositions[block], compressed);
+    bytes = new byte[(int) Math.min(blockSize, length - (long) block * blockSize)];
+    decompressor.reset();
+    try (InputStream blockIn =
+             codec.createInputStream(new ByteArrayInputStream(compressed), decompressor)) {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = blockIn.read(bytes, read, bytes.length - read);
+        if (n < 0) {
+          throw new IOException("Compressed block " + block + " is truncated.");
+        }
+
+        read += n;
+      }
+    }
+
+    blockCache.put(block, bytes);
+    return bytes;
+  }
+
+  @Override
+  public void close() throws IOException {
+    CodecPool.returnDecompressor(decompressor);
+    in.close();
+  }
+
+  static void convert(Configuration conf, FileSystem fs, Path input, Path output, String codecName,
+      int blockSize) throws IOException {
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+    if (codec == null) {
+      throw new IOException("Unknown codec: " + codecName);
+    }
+
+    Compressor compressor = CodecPool.getCompressor(codec);
+    long length = fs.getFileStatus(input).getLen();
+    long[] blockPositions = new long[(int) ((length + blockSize - 1) / blockSize) + 1];
+    byte[] block = new byte[blockSize];
+    ByteArrayOutputStream compressedBlock = new ByteArrayOutputStream();
+    try (InputStream in = fs.open(input); FSDataOutputStream out = fs.create(output, true)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(blockSize);
+      out.writeUTF(codec.getClass().getName());
+      for (int i = 0; i < blockPositions.length - 1; i++) {
+        int size = (int) Math.min(blockSize, length - (long) i * blockSize);
+        int read = 0;
+        while (read < size) {
+          int n = in.read(block, read, size - read);
+          if (n < 0) {
+            throw new IOException("Collection changed while it was being converted.");
+          }
+
+          read += n;
+        }
+
+        compressedBlock.reset();
+        compressor.reset();
+        try (CompressionOutputStream compressedOut =
+                 codec.createOutputStream(compressedBlock, compressor)) {
+          compressedOut.write(block, 0, size);
+          compressedOut.finish();
+        }
+
+        blockPositions[i] = out.getPos();
+        compressedBlock.writeTo(out);
+      }
+
+      blockPositions[blockPositions.length - 1] = out.getPos();
+      long indexPosition = out.getPos();
+      DataOutputStream indexOut = new DataOutputStream(out);
+      for (long position : blockPositions) {
+        indexOut.writeLong(position);
+      }
+
+      indexOut.writeLong(length);
+      indexOut.writeLong(indexPosition);
+      indexOut.writeInt(MAGIC);
+      indexOut.flush();
+    } finally {
+      CodecPool.returnCompressor(compressor);
+    }
+  }
+
+  private static final class Args {
+    @Option(name = "-input", metaVar = "[path]", required = true, usage = "collection path")
+    String input;
+
+    @Option(name = "-output", metaVar = "[path]", required = true, usage = "output path")
+    String output;
+
+    @Option(name = "-codec", metaVar = "[name]", usage = "codec: deflate, snappy, lz4, ...")
+    String codec = "deflate";
+
+    @Option(name = "-blockSize", metaVar = "[bytes]", usage = "uncompressed block size")
+    int blockSize = 1 << 16;
+  }
+
+  public static void main(String[] argv) throws Exception {
+    final Args args = new Args();
+    CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      return;
+    }
+
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.get(conf);
+    long startTime = System.currentTimeMillis();
+    convert(conf, fs, new Path(args.input), new Path(args.output), args.codec, args.blockSize);
+    LOG.info("Compressed " + args.input + " into " + args.output + " ("
+        + fs.getFileStatus(new Path(args.output)).getLen() + " bytes) in "
+        + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+  }
+}
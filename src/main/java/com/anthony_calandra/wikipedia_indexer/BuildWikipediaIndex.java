@@ -36,14 +36,19 @@
 package com.anthony_calandra.wikipedia_indexer;
 
 import io.bespin.java.util.Tokenizer;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
@@ -63,19 +68,37 @@ import tl.lin.data.fd.Object2IntFrequencyDistribution;
 import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
 import tl.lin.data.pair.PairOfFloatInt;
 import tl.lin.data.pair.PairOfObjectInt;
-import tl.lin.data.pair.PairOfStringLong;
 
-import java.io.DataOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 public class BuildWikipediaIndex extends Configured implements Tool {
   private static final Logger LOG = Logger.getLogger(BuildWikipediaIndex.class);
 
+  private static final String MAPPER_MEMORY = "wikipedia_indexer.partial.memory.bytes";
+  private static final String INLINE_POSTINGS = "wikipedia_indexer.postings.inline.bytes";
+  private static final String PARTITION_MAP = "wikipedia_indexer.partition.map";
+
+  enum IndexCounters {
+    ARTICLES,
+    TOKENS,
+    // One per distinct term of an article.
+    POSTINGS,
+    PARTIAL_POSTING_LISTS,
+    EXTERNAL_POSTING_LISTS,
+    // Encoded posting lists, side files included.
+    POSTING_BYTES,
+    // Reducer time spent building and encoding posting lists, shuffle reads included.
+    ENCODE_MILLIS
+  }
+
   public static byte[] float2ByteArray(float value) {
     return ByteBuffer.allocate(4).putFloat(value).array();
   }
@@ -84,126 +107,329 @@ public class BuildWikipediaIndex extends Configured implements Tool {
     return ByteBuffer.wrap(bytes).getFloat();
   }
 
-  private static final class ArticleMapper extends Mapper<LongWritable, Text, PairOfStringLong, PairOfFloatInt> {
-    private static final Object2IntFrequencyDistribution<String> TERM_COUNTS =
+  // Parses "id\tbody" lines and builds the term histogram of each article; subclasses decide how
+  // the postings are emitted.
+  private abstract static class AbstractArticleMapper<V> extends Mapper<LongWritable, Text, TermOffsetPair, V> {
+    protected final Object2IntFrequencyDistribution<String> termCounts =
         new Object2IntFrequencyDistributionEntry<>();
+    private Counter articles;
+    private Counter tokenCount;
+    private Counter postingCount;
+
+    @Override
+    public void setup(Context context) throws IOException, InterruptedException {
+      articles = context.getCounter(IndexCounters.ARTICLES);
+      tokenCount = context.getCounter(IndexCounters.TOKENS);
+      postingCount = context.getCounter(IndexCounters.POSTINGS);
+    }
 
     @Override
     public void map(LongWritable articleOffset, Text article, Context context)
         throws IOException, InterruptedException {
-      String[] articleData = article.toString().split("\\t", 2);
-      int articleId = Integer.parseInt(articleData[0]);
-      List<String> tokens = Tokenizer.tokenize(articleData[1]);
+      articles.increment(1);
+      byte[] bytes = article.getBytes();
+      int length = article.getLength();
+      int tab = findTab(bytes, 0, length);
+      if (tab < 0) {
+        throw new IOException("Article at offset " + articleOffset.get() + " has no id");
+      }
+
+      int articleId = parseArticleId(bytes, 0, tab);
+      List<String> tokens = Tokenizer.tokenize(Text.decode(bytes, tab + 1, length - tab - 1));
 
       // Build a histogram of the terms.
-      TERM_COUNTS.clear();
+      termCounts.clear();
       for (String token : tokens) {
-        TERM_COUNTS.increment(token);
+        termCounts.increment(token);
       }
 
-      // Emit postings.
-      for (PairOfObjectInt<String> e : TERM_COUNTS) {
+      tokenCount.increment(tokens.size());
+      postingCount.increment(termCounts.getNumberOfEvents());
+
+      emitPostings(articleOffset.get(), articleId, tokens.size(), context);
+    }
+
+    // Called once per article with termCounts holding its histogram.
+    protected abstract void emitPostings(long articleOffset, int articleId, int tokens,
+        Context context) throws IOException, InterruptedException;
+  }
+
+  private static final class ArticleMapper extends AbstractArticleMapper<PairOfFloatInt> {
+    // Output writables are reused; the framework serializes them on every write.
+    private final TermOffsetPair posting = new TermOffsetPair();
+    private final PairOfFloatInt articleData = new PairOfFloatInt();
+
+    @Override
+    protected void emitPostings(long articleOffset, int articleId, int tokens, Context context)
+        throws IOException, InterruptedException {
+      for (PairOfObjectInt<String> e : termCounts) {
         // (term, articleOffset) => (termFrequency, articleId)
         int termFrequency = e.getRightElement();
-        context.write(new PairOfStringLong(e.getLeftElement(), articleOffset.get()),
-                      new PairOfFloatInt((float) termFrequency / tokens.size(), articleId));
+        posting.set(e.getLeftElement(), articleOffset);
+        articleData.set((float) termFrequency / tokens, articleId);
+        context.write(posting, articleData);
       }
     }
   }
 
-  private static final class ArticleReducer extends Reducer<PairOfStringLong, PairOfFloatInt, Text, BytesWritable> {
-    private static final Object2IntFrequencyDistribution<Integer> ARTICLE_COUNTS =
-        new Object2IntFrequencyDistributionEntry<>();
-    private static final Text TERM = new Text();
-    private ByteArrayOutputStream postingByteArrayStream = new ByteArrayOutputStream();
-    private DataOutputStream postingOutStream = new DataOutputStream(postingByteArrayStream);
-    private String prev;
-    private long prevArticleOffset;
-    private int df;
+  // Collects the postings of the whole split per term and emits each term once, as an encoded
+  // partial posting list keyed by its first offset, instead of one record per posting. When the
+  // memory budget runs out the lists collected so far are emitted and collection starts over.
+  // Splits are contiguous ranges of the collection, so the partial lists of a term never overlap.
+  private static final class PartialPostingsMapper extends AbstractArticleMapper<BytesWritable> {
+    private final Map<String, PostingsBuffer> postings = new HashMap<>();
+    private final PostingsWriter writer = new PostingsWriter();
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+    private final TermOffsetPair key = new TermOffsetPair();
+    private final BytesWritable value = new BytesWritable();
+    private Counter partialLists;
+    private long memoryBudget;
+    private long memoryUsed;
 
     @Override
-    public void setup(Context context) {
-      prev = null;
-      prevArticleOffset = 0;
-      df = 0;
-      ARTICLE_COUNTS.clear();
+    public void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+      partialLists = context.getCounter(IndexCounters.PARTIAL_POSTING_LISTS);
+      memoryBudget = context.getConfiguration().getLong(MAPPER_MEMORY, 256L << 20);
     }
 
     @Override
-    public void reduce(PairOfStringLong key, Iterable<PairOfFloatInt> values, Context context)
+    protected void emitPostings(long articleOffset, int articleId, int tokens, Context context)
         throws IOException, InterruptedException {
-      Iterator<PairOfFloatInt> iter = values.iterator();
-      String term = key.getLeftElement();
-      long articleOffset = key.getRightElement();
-      if (prev != null && !term.equals(prev)) {
-        TERM.set(prev);
-        postingOutStream.flush();
-        postingByteArrayStream.flush();
-        ByteArrayOutputStream mapfileElementByteArrayStream = new ByteArrayOutputStream();
-        DataOutputStream mapfileElementOutStream = new DataOutputStream(mapfileElementByteArrayStream);
-        WritableUtils.writeVInt(mapfileElementOutStream, df);
-        mapfileElementOutStream.write(postingByteArrayStream.toByteArray());
-        context.write(TERM, new BytesWritable(mapfileElementByteArrayStream.toByteArray()));
-        postingByteArrayStream.reset();
-        df = 0;
-        prevArticleOffset = 0;
+      for (PairOfObjectInt<String> e : termCounts) {
+        PostingsBuffer termPostings = postings.get(e.getLeftElement());
+        if (termPostings == null) {
+          termPostings = new PostingsBuffer();
+          postings.put(e.getLeftElement(), termPostings);
+          memoryUsed += PostingsBuffer.TERM_BYTES + 2 * e.getLeftElement().length();
+        }
+
+        termPostings.add(articleOffset, (float) e.getRightElement() / tokens, articleId);
+        memoryUsed += PostingsBuffer.POSTING_BYTES;
       }
 
-      df++;
-      PairOfFloatInt articleData = iter.next();
-      if (iter.hasNext()) {
-        // Should never get here -- sanity check.
-        throw new InterruptedException("Reducer given more than one article.");
+      if (memoryUsed >= memoryBudget) {
+        flush(context);
+      }
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      flush(context);
+    }
+
+    private void flush(Context context) throws IOException, InterruptedException {
+      for (Map.Entry<String, PostingsBuffer> entry : postings.entrySet()) {
+        PostingsBuffer termPostings = entry.getValue();
+        writer.reset();
+        termPostings.writeTo(writer);
+        buffer.reset();
+        writer.writeTo(buffer);
+        key.set(entry.getKey(), termPostings.offsets[0]);
+        value.set(buffer.getData(), 0, buffer.getLength());
+        context.write(key, value);
+        partialLists.increment(1);
+      }
+
+      postings.clear();
+      memoryUsed = 0;
+    }
+  }
+
+  static int findTab(byte[] bytes, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == '\t') {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  // Integer.parseInt over the ASCII digits of an article id.
+  static int parseArticleId(byte[] bytes, int start, int end) {
+    boolean negative = end > start && bytes[start] == '-';
+    int i = negative || (end > start && bytes[start] == '+') ? start + 1 : start;
+    if (i == end || end - i > 10) {
+      throw new NumberFormatException("Bad article id: " + new String(bytes, start, end - start,
+          StandardCharsets.UTF_8));
+    }
+
+    long id = 0;
+    for (; i < end; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Bad article id: " + new String(bytes, start,
+            end - start, StandardCharsets.UTF_8));
+      }
+
+      id = id * 10 + digit;
+    }
+
+    id = negative ? -id : id;
+    if (id < Integer.MIN_VALUE || id > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Bad article id: " + id);
+    }
+
+    return (int) id;
+  }
+
+  // Builds one term's posting list per reduce call. Keys are grouped by term, so each call gets
+  // everything for the term in key (offset) order.
+  private abstract static class AbstractPostingsReducer<V> extends Reducer<TermOffsetPair, V, Text, BytesWritable> {
+    private final Text term = new Text();
+    private final DataOutputBuffer postingsBuffer = new DataOutputBuffer();
+    private final BytesWritable value = new BytesWritable();
+    private PostingsWriter postings;
+    private FileSystem fs;
+    private Path sideFilePath;
+    private FSDataOutputStream sideFile;
+    private long partitionTerms;
+    private int partition;
+    private Path workOutputPath;
+    private Counter externalTerms;
+    private Counter postingBytes;
+    private long maxDf;
+    private long encodeNanos;
+    private long prevArticleOffset;
+
+    @Override
+    public void setup(Context context) throws IOException, InterruptedException {
+      partition = context.getTaskAttemptID().getTaskID().getId();
+      workOutputPath = FileOutputFormat.getWorkOutputPath(context);
+      externalTerms = context.getCounter(IndexCounters.EXTERNAL_POSTING_LISTS);
+      postingBytes = context.getCounter(IndexCounters.POSTING_BYTES);
+
+      // Lists too large to hold in memory are streamed to a side file committed with the
+      // partition's MapFile.
+      sideFilePath = IndexManifest.sideFilePath(workOutputPath, partition);
+      fs = sideFilePath.getFileSystem(context.getConfiguration());
+      sideFile = fs.create(sideFilePath, true);
+      postings = new PostingsWriter(sideFile,
+          context.getConfiguration().getInt(INLINE_POSTINGS, 1 << 20));
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      long length = sideFile.getPos();
+      sideFile.close();
+      postingBytes.increment(length);
+      context.getCounter(IndexCounters.ENCODE_MILLIS).increment(encodeNanos / 1000000);
+      if (length == 0) {
+        fs.delete(sideFilePath, false);
+      }
+
+      // Committed with the partition, for the index manifest.
+      Properties stats = new Properties();
+      stats.setProperty("terms", Long.toString(partitionTerms));
+      stats.setProperty("max.df", Long.toString(maxDf));
+      IndexManifest.writePartitionStats(fs, workOutputPath, partition, stats);
+    }
+
+    @Override
+    public void reduce(TermOffsetPair key, Iterable<V> values, Context context)
+        throws IOException, InterruptedException {
+      long startTime = System.nanoTime();
+      postings.reset();
+      prevArticleOffset = -1;
+      addPostings(key, values);
+
+      term.set(key.getTerm());
+      postingsBuffer.reset();
+      postings.writeTo(postingsBuffer);
+      encodeNanos += System.nanoTime() - startTime;
+      value.set(postingsBuffer.getData(), 0, postingsBuffer.getLength());
+      context.write(term, value);
+      partitionTerms++;
+      postingBytes.increment(postingsBuffer.getLength());
+      maxDf = Math.max(maxDf, postings.getDf());
+
+      if (postings.isExternal()) {
+        externalTerms.increment(1);
       }
+    }
 
-      float tf = articleData.getLeftElement();
-      int articleId = articleData.getRightElement();
-      if (articleOffset - prevArticleOffset < 0) {
+    protected abstract void addPostings(TermOffsetPair key, Iterable<V> values)
+        throws IOException, InterruptedException;
+
+    protected void add(long articleOffset, float tf, int articleId)
+        throws IOException, InterruptedException {
+      if (articleOffset <= prevArticleOffset) {
+        // Should never get here -- sanity check.
         throw new InterruptedException(
           String.format("Document IDs are out of order: %d %d", articleOffset, prevArticleOffset));
       }
 
-      WritableUtils.writeVLong(postingOutStream, articleOffset - prevArticleOffset);
-      WritableUtils.writeCompressedByteArray(postingOutStream, float2ByteArray(tf));
-      WritableUtils.writeVInt(postingOutStream, articleId);
-      ARTICLE_COUNTS.set(articleId, 1);
-      prev = term;
+      postings.add(articleOffset, tf, articleId);
       prevArticleOffset = articleOffset;
     }
+  }
 
+  private static final class ArticleReducer extends AbstractPostingsReducer<PairOfFloatInt> {
+    // The framework refills the key while the values are iterated, so key holds the offset of the
+    // current value.
     @Override
-    public void cleanup(Context context) throws IOException, InterruptedException {
-      if (prev != null) {
-        TERM.set(prev);
-        postingOutStream.flush();
-        postingByteArrayStream.flush();
-        ByteArrayOutputStream mapfileElementByteArrayStream = new ByteArrayOutputStream();
-        DataOutputStream mapfileElementOutStream = new DataOutputStream(mapfileElementByteArrayStream);
-        WritableUtils.writeVInt(mapfileElementOutStream, df);
-        mapfileElementOutStream.write(postingByteArrayStream.toByteArray());
-        context.write(TERM, new BytesWritable(mapfileElementByteArrayStream.toByteArray()));
-        postingByteArrayStream.reset();
+    protected void addPostings(TermOffsetPair key, Iterable<PairOfFloatInt> values)
+        throws IOException, InterruptedException {
+      for (PairOfFloatInt articleData : values) {
+        add(key.getOffset(), articleData.getLeftElement(), articleData.getRightElement());
       }
+    }
+  }
 
-      // Store total number of articles.
-      // Setting the term to a tilde is a really hacky way of doing this...
-      TERM.set("~");
-      postingOutStream.flush();
-      postingByteArrayStream.flush();
-      ByteArrayOutputStream mapfileElementByteArrayStream = new ByteArrayOutputStream();
-      DataOutputStream mapfileElementOutStream = new DataOutputStream(mapfileElementByteArrayStream);
-      WritableUtils.writeVInt(mapfileElementOutStream, ARTICLE_COUNTS.getNumberOfEvents());
-      context.write(TERM, new BytesWritable(mapfileElementByteArrayStream.toByteArray()));
-
-      postingOutStream.close();
-      postingByteArrayStream.close();
+  // Concatenates the partial posting lists of a term; they arrive ordered by first offset.
+  private static final class PartialPostingsReducer extends AbstractPostingsReducer<BytesWritable> {
+    @Override
+    protected void addPostings(TermOffsetPair key, Iterable<BytesWritable> values)
+        throws IOException, InterruptedException {
+      for (BytesWritable partial : values) {
+        PostingsReader reader = new PostingsReader(
+            PostingList.parse(ByteBuffer.wrap(partial.getBytes(), 0, partial.getLength())));
+        while (reader.nextBlock()) {
+          long[] offsets = reader.offsets();
+          float[] tfs = reader.tfs();
+          int[] articleIds = reader.articleIds();
+          // Re-quantizing a decoded tf gives back the same value, so the result matches the
+          // posting-at-a-time build.
+          for (int i = 0; i < reader.blockSize(); i++) {
+            add(offsets[i], tfs[i], articleIds[i]);
+          }
+        }
+      }
     }
   }
 
-  private static final class ArticlePartitioner extends Partitioner<PairOfStringLong, PairOfFloatInt> {
+  // Hash partitions terms unless the job was given a partition map.
+  private static final class ArticlePartitioner<V> extends Partitioner<TermOffsetPair, V> implements Configurable {
+    private Configuration conf;
+    private PartitionMap partitionMap;
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+      String path = conf.get(PARTITION_MAP);
+      if (path != null) {
+        try {
+          partitionMap = PartitionMap.read(new Path(path).getFileSystem(conf), new Path(path));
+        } catch (IOException e) {
+          throw new UncheckedIOException("Failed to read the partition map " + path, e);
+        }
+      }
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
     @Override
-    public int getPartition(PairOfStringLong key, PairOfFloatInt value, int numReduceTasks) {
-      return (key.getLeftElement().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+    public int getPartition(TermOffsetPair key, V value, int numReduceTasks) {
+      Text term = key.getTerm();
+      if (partitionMap != null && partitionMap.getPartitions() == numReduceTasks) {
+        return partitionMap.partition(term.getBytes(), 0, term.getLength());
+      }
+
+      return TermPartitioner.hashPartition(term.getBytes(), 0, term.getLength(), numReduceTasks);
     }
   }
 
@@ -218,6 +444,32 @@ public class BuildWikipediaIndex extends Configured implements Tool {
 
     @Option(name = "-reducers", metaVar = "[num]", usage = "number of reducers")
     int numReducers = 1;
+
+    @Option(name = "-noSnippets", usage = "don't build the snippet store")
+    boolean noSnippets = false;
+
+    @Option(name = "-partialPostings",
+        usage = "shuffle per-split partial posting lists instead of single postings")
+    boolean partialPostings = false;
+
+    @Option(name = "-mapperMemoryMB", metaVar = "[num]",
+        usage = "memory for postings collected by a mapper with -partialPostings")
+    int mapperMemoryMB = 256;
+
+    @Option(name = "-inlinePostingsKB", metaVar = "[num]",
+        usage = "posting lists encoded larger than this go to a side file")
+    int inlinePostingsKB = 1024;
+
+    @Option(name = "-partitionMap",
+        usage = "balance partitions by sampling the collection for the largest terms")
+    boolean partitionMap = false;
+
+    @Option(name = "-sampleMB", metaVar = "[num]", usage = "collection sample for -partitionMap")
+    int sampleMB = 64;
+
+    @Option(name = "-mappedTerms", metaVar = "[num]",
+        usage = "number of largest terms -partitionMap places explicitly")
+    int mappedTerms = 10000;
   }
 
   @Override
@@ -237,6 +489,8 @@ public class BuildWikipediaIndex extends Configured implements Tool {
     LOG.info(" - input path: " + args.input);
     LOG.info(" - output path: " + args.output);
     LOG.info(" - reducers: " + args.numReducers);
+    LOG.info(" - partial postings: " + args.partialPostings);
+    LOG.info(" - partition map: " + args.partitionMap);
 
     Job job = Job.getInstance(getConf());
     job.setJobName(BuildWikipediaIndex.class.getSimpleName());
@@ -247,27 +501,124 @@ public class BuildWikipediaIndex extends Configured implements Tool {
     FileInputFormat.setInputPaths(job, new Path(args.input));
     FileOutputFormat.setOutputPath(job, new Path(args.output));
 
-    job.setMapOutputKeyClass(PairOfStringLong.class);
-    job.setMapOutputValueClass(PairOfFloatInt.class);
+    job.setMapOutputKeyClass(TermOffsetPair.class);
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(BytesWritable.class);
     job.setOutputFormatClass(MapFileOutputFormat.class);
+    // The term dictionary points into the data files, which only works when they are uncompressed.
+    FileOutputFormat.setCompressOutput(job, false);
+
+    job.getConfiguration().setInt(INLINE_POSTINGS, args.inlinePostingsKB * 1024);
+    if (args.partialPostings) {
+      job.getConfiguration().setLong(MAPPER_MEMORY, args.mapperMemoryMB * 1024L * 1024L);
+      job.setMapOutputValueClass(BytesWritable.class);
+      job.setMapperClass(PartialPostingsMapper.class);
+      job.setReducerClass(PartialPostingsReducer.class);
+    } else {
+      job.setMapOutputValueClass(PairOfFloatInt.class);
+      job.setMapperClass(ArticleMapper.class);
+      job.setReducerClass(ArticleReducer.class);
+    }
 
-    job.setMapperClass(ArticleMapper.class);
-    job.setReducerClass(ArticleReducer.class);
     job.setPartitionerClass(ArticlePartitioner.class);
+    job.setSortComparatorClass(TermOffsetPair.Comparator.class);
+    job.setGroupingComparatorClass(TermOffsetPair.TermComparator.class);
 
     // Delete the output directory if it exists already.
     Path outputDir = new Path(args.output);
     FileSystem.get(getConf()).delete(outputDir, true);
 
+    // The job refuses to start if its output directory exists, so the partition map waits next
+    // to it until the job is done.
+    String partitioner = TermPartitioner.HASH;
+    Path partitionMapPath = new Path(outputDir.getParent(), outputDir.getName() + PartitionMap.FILE_NAME);
+    if (args.partitionMap) {
+      long sampleTime = System.currentTimeMillis();
+      FileSystem fs = FileSystem.get(getConf());
+      PartitionMap.build(PartitionMap.sample(fs, new Path(args.input), args.sampleMB * 1024L * 1024L),
+          args.numReducers, args.mappedTerms).write(fs, partitionMapPath);
+      job.getConfiguration().set(PARTITION_MAP, partitionMapPath.toString());
+      partitioner = TermPartitioner.MAP;
+      System.out.println("Partition map built in " + (System.currentTimeMillis() - sampleTime) / 1000.0 + " seconds");
+    }
+
     long startTime = System.currentTimeMillis();
-    job.waitForCompletion(true);
+    if (!job.waitForCompletion(true)) {
+      return -1;
+    }
+
     System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
+    // The article count comes from the job counters rather than from the reducers, which only
+    // see the articles of their own partition.
+    FileSystem fs = FileSystem.get(getConf());
+    long[] partitionTerms = new long[args.numReducers];
+    long[] partitionMaxDfs = new long[args.numReducers];
+    for (int i = 0; i < partitionTerms.length; i++) {
+      Properties stats = IndexManifest.takePartitionStats(fs, outputDir, i);
+      partitionTerms[i] = Long.parseLong(stats.getProperty("terms"));
+      partitionMaxDfs[i] = Long.parseLong(stats.getProperty("max.df"));
+    }
+
+    printJobStatistics(job, partitionTerms, partitionMaxDfs);
+
+    if (args.partitionMap) {
+      fs.rename(partitionMapPath, new Path(outputDir, PartitionMap.FILE_NAME));
+    }
+
+    startTime = System.currentTimeMillis();
+    TermDictionary.build(fs, getConf(), outputDir, args.numReducers);
+    System.out.println("Term dictionary built in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+    long articles = job.getCounters().findCounter(IndexCounters.ARTICLES).getValue();
+    Path inputPath = new Path(args.input);
+    IndexManifest manifest = IndexManifest.create(fs, outputDir, articles, partitionTerms, partitioner)
+        .setPartitionMaxDfs(partitionMaxDfs);
+    if (fs.getFileStatus(inputPath).isFile()) {
+      // Lets LocalIndexBuilder -appendTo add the lines appended later as deltas.
+      manifest.setCollectionRange(0, fs.getFileStatus(inputPath).getLen());
+    }
+
+    manifest.write(fs, outputDir);
+    LOG.info("Indexed " + articles + " articles");
+
+    if (!args.noSnippets && fs.getFileStatus(inputPath).isFile()) {
+      // Result lines are served from the snippet store so queries don't need the collection.
+      startTime = System.currentTimeMillis();
+      SnippetStore.build(fs, inputPath, outputDir);
+      System.out.println("Snippet store built in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+      // Bitmaps number articles by their snippet store entry.
+      startTime = System.currentTimeMillis();
+      BitmapIndex.build(fs, outputDir);
+      System.out.println("Bitmaps built in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+    }
+
     return 0;
   }
 
+  private static void printJobStatistics(Job job, long[] partitionTerms, long[] partitionMaxDfs)
+      throws IOException {
+    Counters counters = job.getCounters();
+    long largestDf = 0;
+    for (long maxDf : partitionMaxDfs) {
+      largestDf = Math.max(largestDf, maxDf);
+    }
+
+    long terms = 0;
+    for (long partition : partitionTerms) {
+      terms += partition;
+    }
+
+    long encodeMillis = counters.findCounter(IndexCounters.ENCODE_MILLIS).getValue();
+    System.out.println(String.format(
+        "tokens=%d postings=%d posting bytes=%d largest df=%d encode ms/term=%.4f",
+        counters.findCounter(IndexCounters.TOKENS).getValue(),
+        counters.findCounter(IndexCounters.POSTINGS).getValue(),
+        counters.findCounter(IndexCounters.POSTING_BYTES).getValue(), largestDf,
+        terms > 0 ? (double) encodeMillis / terms : 0));
+  }
+
   public static void main(String[] args) throws Exception {
     ToolRunner.run(new BuildWikipediaIndex(), args);
   }
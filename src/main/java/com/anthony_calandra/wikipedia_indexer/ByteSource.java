@@ -0,0 +1,271 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Random access to the bytes of a file. Files on the local file system are memory-mapped, so
+// reads are served straight from the page cache and shared between processes; anything else
+// (HDFS) falls back to positioned reads. Safe for concurrent use.
+abstract class ByteSource implements Closeable {
+  abstract long length();
+
+  abstract void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+  long readLong(long position) throws IOException {
+    byte[] bytes = new byte[8];
+    read(position, bytes, 0, bytes.length);
+    return ByteBuffer.wrap(bytes).getLong();
+  }
+
+  // The bytes at position as a buffer. Mapped files return a view of the mapping, which copies
+  // nothing; other sources read the bytes into the heap.
+  ByteBuffer buffer(long position, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    read(position, bytes, 0, length);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  // A view of length bytes starting at start. Closing it leaves this source open.
+  ByteSource slice(long start, long length) {
+    return new SliceByteSource(this, start, length);
+  }
+
+  static ByteSource open(FileSystem fs, Path path) throws IOException {
+    if (fs instanceof LocalFileSystem) {
+      return map(((LocalFileSystem) fs).pathToFile(path));
+    }
+
+    return new StreamByteSource(fs.open(path), fs.getFileStatus(path).getLen());
+  }
+
+  // Reads the whole file into the heap; for small, frequently probed files on remote storage.
+  static ByteSource load(FileSystem fs, Path path) throws IOException {
+    long length = fs.getFileStatus(path).getLen();
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("File is too large to load into memory: " + path);
+    }
+
+    byte[] bytes = new byte[(int) length];
+    try (FSDataInputStream in = fs.open(path)) {
+      in.readFully(0, bytes);
+    }
+
+    return new HeapByteSource(ByteBuffer.wrap(bytes));
+  }
+
+  static ByteSource load(ByteSource source) throws IOException {
+    if (source.length() > Integer.MAX_VALUE) {
+      throw new IOException("Source is too large to load into memory.");
+    }
+
+    byte[] bytes = new byte[(int) source.length()];
+    source.read(0, bytes, 0, bytes.length);
+    return new HeapByteSource(ByteBuffer.wrap(bytes));
+  }
+
+  static ByteSource map(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return new MappedByteSource(raf.getChannel());
+    }
+  }
+
+  private static final class MappedByteSource extends ByteSource {
+    // A single MappedByteBuffer cannot exceed 2GB, so larger files are mapped in segments.
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    private MappedByteSource(FileChannel channel) throws IOException {
+      length = channel.size();
+      segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i << SEGMENT_BITS;
+        segments[i] = channel.map(
+            FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+      }
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void read(long position, byte[] buffer, int offset, int length) throws IOException {
+      if (position + length > this.length) {
+        throw new EOFException("Read past the end of a mapped file at " + position);
+      }
+
+      while (length > 0) {
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+        segment.position((int) (position & (SEGMENT_SIZE - 1)));
+        int chunk = Math.min(length, segment.remaining());
+        segment.get(buffer, offset, chunk);
+        position += chunk;
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    @Override
+    long readLong(long position) throws IOException {
+      int index = (int) (position & (SEGMENT_SIZE - 1));
+      MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+      if (index + 8 <= segment.limit()) {
+        return segment.getLong(index);
+      }
+
+      return super.readLong(position);
+    }
+
+    @Override
+    ByteBuffer buffer(long position, int length) throws IOException {
+      if (position + length <= this.length) {
+        int index = (int) (position & (SEGMENT_SIZE - 1));
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+        if (index + length <= segment.limit()) {
+          segment.position(index);
+          segment.limit(index + length);
+          return segment.slice();
+        }
+      }
+
+      return super.buffer(position, length);
+    }
+
+    @Override
+    public void close() {
+      // Mappings are released when the buffers are garbage collected.
+    }
+  }
+
+  private static final class SliceByteSource extends ByteSource {
+    private final ByteSource source;
+    private final long start;
+    private final long length;
+
+    private SliceByteSource(ByteSource source, long start, long length) {
+      this.source = source;
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void read(long position, byte[] buffer, int offset, int length) throws IOException {
+      checkBounds(position, length);
+      source.read(start + position, buffer, offset, length);
+    }
+
+    @Override
+    long readLong(long position) throws IOException {
+      checkBounds(position, 8);
+      return source.readLong(start + position);
+    }
+
+    @Override
+    ByteBuffer buffer(long position, int length) throws IOException {
+      checkBounds(position, length);
+      return source.buffer(start + position, length);
+    }
+
+    private void checkBounds(long position, int length) throws EOFException {
+      if (position < 0 || position + length > this.length) {
+        throw new EOFException("Read past the end of a slice at " + position);
+      }
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static final class HeapByteSource extends ByteSource {
+    private final ByteBuffer bytes;
+
+    private HeapByteSource(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    long length() {
+      return bytes.capacity();
+    }
+
+    @Override
+    void read(long position, byte[] buffer, int offset, int length) throws IOException {
+      if (position + length > bytes.capacity()) {
+        throw new EOFException("Read past the end of a buffer at " + position);
+      }
+
+      System.arraycopy(bytes.array(), (int) position, buffer, offset, length);
+    }
+
+    @Override
+    long readLong(long position) {
+      return bytes.getLong((int) position);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static final class StreamByteSource extends ByteSource {
+    private final FSDataInputStream in;
+    private final long length;
+
+    private StreamByteSource(FSDataInputStream in, long length) {
+      this.in = in;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void read(long position, byte[] buffer, int offset, int length) throws IOException {
+      in.readFully(position, buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Random access to the lines of the article collection, by the byte offset the indexer recorded.
+abstract class CollectionReader implements Closeable {
+  // Copies the start of the line at offset into buffer, stopping at the end of the line or when
+  // the buffer is full. Returns the number of bytes copied.
+  abstract int readLinePrefix(long offset, byte[] buffer) throws IOException;
+
+  static CollectionReader open(FileSystem fs, Path path) throws IOException {
+    FSDataInputStream in = fs.open(path);
+    if (BlockCompressedCollection.isBlockCompressed(in)) {
+      return BlockCompressedCollection.open(fs.getConf(), in, fs.getFileStatus(path).getLen());
+    }
+
+    return new RawCollection(in);
+  }
+
+  static int lineLength(byte[] buffer, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (buffer[i] == '\n' || buffer[i] == '\r') {
+        return i - offset;
+      }
+    }
+
+    return length;
+  }
+
+  // The uncompressed collection, read with positioned reads.
+  private static final class RawCollection extends CollectionReader {
+    private final FSDataInputStream collection;
+
+    private RawCollection(FSDataInputStream collection) {
+      this.collection = collection;
+    }
+
+    @Override
+    int readLinePrefix(long offset, byte[] buffer) throws IOException {
+      int length = 0;
+      while (length < buffer.length) {
+        int read = collection.read(offset + length, buffer, length, buffer.length - length);
+        if (read < 0) {
+          break;
+        }
+
+        length += read;
+      }
+
+      return lineLength(buffer, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      collection.close();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Cursors over consecutive, disjoint ranges of offsets (an index and its deltas) read one after
+// the other.
+final class ConcatCursor implements DocCursor {
+  private final DocCursor[] cursors;
+  private int current;
+  private long offset = -1;
+
+  ConcatCursor(DocCursor[] cursors) {
+    this.cursors = cursors;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return cursors[current].articleId();
+  }
+
+  @Override
+  public double score() {
+    return cursors[current].score();
+  }
+
+  @Override
+  public double maxScore() {
+    double maxScore = Double.NEGATIVE_INFINITY;
+    for (int i = current; i < cursors.length; i++) {
+      maxScore = Math.max(maxScore, cursors[i].maxScore());
+    }
+
+    return maxScore;
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    while (current < cursors.length) {
+      offset = cursors[current].advance(target, threshold);
+      if (offset != NO_MORE_DOCS) {
+        return offset;
+      }
+
+      current++;
+    }
+
+    offset = NO_MORE_DOCS;
+    return offset;
+  }
+}
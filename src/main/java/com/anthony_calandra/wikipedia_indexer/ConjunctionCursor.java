@@ -0,0 +1,93 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Intersection of any number of cursors, scored by one of them (for a query, its rightmost
+// operand). The operands are given in increasing cost order: the cheapest one proposes
+// candidates and the others only have to confirm them, so the rarest term drives the
+// intersection no matter where it was written. Only the scoring operand is subject to threshold
+// pruning.
+final class ConjunctionCursor implements DocCursor {
+  private final DocCursor[] operands;
+  private final int scorer;
+  private long offset = -1;
+
+  ConjunctionCursor(DocCursor[] operands, int scorer) {
+    this.operands = operands;
+    this.scorer = scorer;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return operands[scorer].articleId();
+  }
+
+  @Override
+  public double score() {
+    return operands[scorer].score();
+  }
+
+  @Override
+  public double maxScore() {
+    return operands[scorer].maxScore();
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    if (offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    long candidate = advance(0, target, threshold);
+    int i = 1;
+    while (candidate != NO_MORE_DOCS && i < operands.length) {
+      long other = advance(i, candidate, threshold);
+      if (other == candidate) {
+        i++;
+      } else {
+        candidate = advance(0, other, threshold);
+        i = 1;
+      }
+    }
+
+    offset = candidate;
+    return offset;
+  }
+
+  private long advance(int operand, long target, double threshold) throws IOException {
+    return operands[operand].advance(target,
+        operand == scorer ? threshold : Double.NEGATIVE_INFINITY);
+  }
+}
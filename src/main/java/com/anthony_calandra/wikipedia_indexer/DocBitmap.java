@@ -0,0 +1,406 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// An immutable set of article numbers, split like a Roaring bitmap into chunks of 2^16 numbers
+// that share their high 16 bits. A chunk with few members is a sorted array of the low bits and a
+// dense one a plain bitmap, so intersections and unions of common terms are word operations.
+// Serialized as int chunk count, then per chunk char key and int cardinality, then the chunk
+// data (cardinality chars or BITMAP_WORDS longs).
+final class DocBitmap {
+  // Above this many members a bitmap is smaller than an array.
+  private static final int MAX_ARRAY = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+  private final char[] keys;
+  // Each either a char[] or a long[].
+  private final Object[] chunks;
+  private final int[] cardinalities;
+  private final int size;
+
+  private DocBitmap(char[] keys, Object[] chunks, int[] cardinalities, int count) {
+    this.keys = count == keys.length ? keys : Arrays.copyOf(keys, count);
+    this.chunks = count == chunks.length ? chunks : Arrays.copyOf(chunks, count);
+    this.cardinalities = count == cardinalities.length
+        ? cardinalities : Arrays.copyOf(cardinalities, count);
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      size += this.cardinalities[i];
+    }
+
+    this.size = size;
+  }
+
+  // Collects numbers added in increasing order.
+  static final class Builder {
+    private final char[] array = new char[MAX_ARRAY];
+    private long[] bitmap;
+    private char[] keys = new char[4];
+    private Object[] chunks = new Object[4];
+    private int[] cardinalities = new int[4];
+    private int count;
+    private int key = -1;
+    private int cardinality;
+
+    void add(int number) {
+      int high = number >>> 16;
+      if (high != key) {
+        flush();
+        key = high;
+      }
+
+      char low = (char) number;
+      if (bitmap != null) {
+        bitmap[low >>> 6] |= 1L << low;
+      } else if (cardinality < MAX_ARRAY) {
+        array[cardinality] = low;
+      } else {
+        bitmap = new long[BITMAP_WORDS];
+        for (char member : array) {
+          bitmap[member >>> 6] |= 1L << member;
+        }
+
+        bitmap[low >>> 6] |= 1L << low;
+      }
+
+      cardinality++;
+    }
+
+    DocBitmap build() {
+      flush();
+      return new DocBitmap(keys, chunks, cardinalities, count);
+    }
+
+    private void flush() {
+      if (cardinality == 0) {
+        return;
+      }
+
+      if (count == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * count);
+        chunks = Arrays.copyOf(chunks, 2 * count);
+        cardinalities = Arrays.copyOf(cardinalities, 2 * count);
+      }
+
+      keys[count] = (char) key;
+      chunks[count] = bitmap != null ? bitmap : Arrays.copyOf(array, cardinality);
+      cardinalities[count++] = cardinality;
+      bitmap = null;
+      cardinality = 0;
+    }
+  }
+
+  static DocBitmap read(ByteBuffer in) {
+    int count = in.getInt();
+    char[] keys = new char[count];
+    int[] cardinalities = new int[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = in.getChar();
+      cardinalities[i] = in.getInt();
+    }
+
+    Object[] chunks = new Object[count];
+    for (int i = 0; i < count; i++) {
+      if (cardinalities[i] <= MAX_ARRAY) {
+        char[] array = new char[cardinalities[i]];
+        in.asCharBuffer().get(array);
+        in.position(in.position() + 2 * array.length);
+        chunks[i] = array;
+      } else {
+        long[] bitmap = new long[BITMAP_WORDS];
+        in.asLongBuffer().get(bitmap);
+        in.position(in.position() + 8 * bitmap.length);
+        chunks[i] = bitmap;
+      }
+    }
+
+    return new DocBitmap(keys, chunks, cardinalities, count);
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      out.writeChar(keys[i]);
+      out.writeInt(cardinalities[i]);
+    }
+
+    for (Object chunk : chunks) {
+      if (chunk instanceof char[]) {
+        for (char member : (char[]) chunk) {
+          out.writeChar(member);
+        }
+      } else {
+        for (long word : (long[]) chunk) {
+          out.writeLong(word);
+        }
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  long sizeInBytes() {
+    long bytes = 64 + 14L * keys.length;
+    for (Object chunk : chunks) {
+      bytes += chunk instanceof char[] ? 2L * ((char[]) chunk).length : 8L * BITMAP_WORDS;
+    }
+
+    return bytes;
+  }
+
+  boolean contains(int number) {
+    int i = Arrays.binarySearch(keys, (char) (number >>> 16));
+    if (i < 0) {
+      return false;
+    }
+
+    char low = (char) number;
+    if (chunks[i] instanceof char[]) {
+      return Arrays.binarySearch((char[]) chunks[i], low) >= 0;
+    }
+
+    return (((long[]) chunks[i])[low >>> 6] & (1L << low)) != 0;
+  }
+
+  // The smallest member that is at least from, or -1 if there is none.
+  int next(int from) {
+    int i = Arrays.binarySearch(keys, (char) (from >>> 16));
+    int low = from & 0xFFFF;
+    if (i < 0) {
+      i = -i - 1;
+      low = 0;
+    }
+
+    for (; i < keys.length; i++, low = 0) {
+      int member = nextInChunk(chunks[i], low);
+      if (member >= 0) {
+        return (keys[i] << 16) | member;
+      }
+    }
+
+    return -1;
+  }
+
+  DocBitmap and(DocBitmap other) {
+    int capacity = Math.min(keys.length, other.keys.length);
+    char[] keys = new char[capacity];
+    Object[] chunks = new Object[capacity];
+    int[] cardinalities = new int[capacity];
+    int count = 0;
+    for (int i = 0, j = 0; i < this.keys.length && j < other.keys.length; ) {
+      if (this.keys[i] < other.keys[j]) {
+        i++;
+      } else if (this.keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Object chunk = and(this.chunks[i], other.chunks[j]);
+        int cardinality = cardinality(chunk);
+        if (cardinality > 0) {
+          keys[count] = this.keys[i];
+          chunks[count] = chunk;
+          cardinalities[count++] = cardinality;
+        }
+
+        i++;
+        j++;
+      }
+    }
+
+    return new DocBitmap(keys, chunks, cardinalities, count);
+  }
+
+  DocBitmap or(DocBitmap other) {
+    int capacity = keys.length + other.keys.length;
+    char[] keys = new char[capacity];
+    Object[] chunks = new Object[capacity];
+    int[] cardinalities = new int[capacity];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < this.keys.length || j < other.keys.length) {
+      if (j == other.keys.length || (i < this.keys.length && this.keys[i] < other.keys[j])) {
+        keys[count] = this.keys[i];
+        chunks[count] = this.chunks[i];
+        cardinalities[count++] = this.cardinalities[i++];
+      } else if (i == this.keys.length || this.keys[i] > other.keys[j]) {
+        keys[count] = other.keys[j];
+        chunks[count] = other.chunks[j];
+        cardinalities[count++] = other.cardinalities[j++];
+      } else {
+        Object chunk = or(this.chunks[i++], other.chunks[j++]);
+        keys[count] = this.keys[i - 1];
+        chunks[count] = chunk;
+        cardinalities[count++] = cardinality(chunk);
+      }
+    }
+
+    return new DocBitmap(keys, chunks, cardinalities, count);
+  }
+
+  private static int nextInChunk(Object chunk, int low) {
+    if (chunk instanceof char[]) {
+      char[] array = (char[]) chunk;
+      int i = Arrays.binarySearch(array, (char) low);
+      i = i < 0 ? -i - 1 : i;
+      return i < array.length ? array[i] : -1;
+    }
+
+    long[] bitmap = (long[]) chunk;
+    int word = low >>> 6;
+    long bits = bitmap[word] & (-1L << low);
+    while (bits == 0) {
+      if (++word == BITMAP_WORDS) {
+        return -1;
+      }
+
+      bits = bitmap[word];
+    }
+
+    return (word << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+  private static int cardinality(Object chunk) {
+    if (chunk instanceof char[]) {
+      return ((char[]) chunk).length;
+    }
+
+    int cardinality = 0;
+    for (long word : (long[]) chunk) {
+      cardinality += Long.bitCount(word);
+    }
+
+    return cardinality;
+  }
+
+  private static Object and(Object chunk1, Object chunk2) {
+    if (chunk1 instanceof long[] && chunk2 instanceof long[]) {
+      long[] bitmap1 = (long[]) chunk1;
+      long[] bitmap2 = (long[]) chunk2;
+      long[] result = new long[BITMAP_WORDS];
+      int cardinality = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        result[i] = bitmap1[i] & bitmap2[i];
+        cardinality += Long.bitCount(result[i]);
+      }
+
+      return cardinality > MAX_ARRAY ? result : toArray(result, cardinality);
+    }
+
+    if (chunk1 instanceof long[]) {
+      Object swap = chunk1;
+      chunk1 = chunk2;
+      chunk2 = swap;
+    }
+
+    // chunk1 is an array; the result is never larger than it.
+    char[] array = (char[]) chunk1;
+    char[] result = new char[array.length];
+    int n = 0;
+    if (chunk2 instanceof long[]) {
+      long[] bitmap = (long[]) chunk2;
+      for (char member : array) {
+        if ((bitmap[member >>> 6] & (1L << member)) != 0) {
+          result[n++] = member;
+        }
+      }
+    } else {
+      char[] other = (char[]) chunk2;
+      for (int i = 0, j = 0; i < array.length && j < other.length; ) {
+        if (array[i] < other[j]) {
+          i++;
+        } else if (array[i] > other[j]) {
+          j++;
+        } else {
+          result[n++] = array[i];
+          i++;
+          j++;
+        }
+      }
+    }
+
+    return Arrays.copyOf(result, n);
+  }
+
+  private static Object or(Object chunk1, Object chunk2) {
+    if (chunk1 instanceof char[] && chunk2 instanceof char[]) {
+      char[] array1 = (char[]) chunk1;
+      char[] array2 = (char[]) chunk2;
+      char[] result = new char[array1.length + array2.length];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+      while (i < array1.length || j < array2.length) {
+        if (j == array2.length || (i < array1.length && array1[i] < array2[j])) {
+          result[n++] = array1[i++];
+        } else if (i == array1.length || array1[i] > array2[j]) {
+          result[n++] = array2[j++];
+        } else {
+          result[n++] = array1[i++];
+          j++;
+        }
+      }
+
+      return n <= MAX_ARRAY ? Arrays.copyOf(result, n) : toBitmap(result, n);
+    }
+
+    long[] result = new long[BITMAP_WORDS];
+    for (Object chunk : new Object[] {chunk1, chunk2}) {
+      if (chunk instanceof long[]) {
+        long[] bitmap = (long[]) chunk;
+        for (int i = 0; i < BITMAP_WORDS; i++) {
+          result[i] |= bitmap[i];
+        }
+      } else {
+        for (char member : (char[]) chunk) {
+          result[member >>> 6] |= 1L << member;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private static char[] toArray(long[] bitmap, int cardinality) {
+    char[] array = new char[cardinality];
+    int n = 0;
+    for (int word = 0; word < BITMAP_WORDS; word++) {
+      for (long bits = bitmap[word]; bits != 0; bits &= bits - 1) {
+        array[n++] = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+      }
+    }
+
+    return array;
+  }
+
+  private static long[] toBitmap(char[] array, int n) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int i = 0; i < n; i++) {
+      bitmap[array[i] >>> 6] |= 1L << array[i];
+    }
+
+    return bitmap;
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Iterates the articles matching (part of) a query in increasing article offset order.
+interface DocCursor {
+  long NO_MORE_DOCS = Long.MAX_VALUE;
+
+  DocCursor EMPTY = new DocCursor() {
+    @Override
+    public long offset() {
+      return NO_MORE_DOCS;
+    }
+
+    @Override
+    public int articleId() {
+      return -1;
+    }
+
+    @Override
+    public double score() {
+      return 0;
+    }
+
+    @Override
+    public long advance(long target, double threshold) {
+      return NO_MORE_DOCS;
+    }
+
+    @Override
+    public double maxScore() {
+      return Double.NEGATIVE_INFINITY;
+    }
+  };
+
+  // Offset of the current article, -1 before the first call to advance() and NO_MORE_DOCS once
+  // the cursor is exhausted.
+  long offset();
+
+  int articleId();
+
+  double score();
+
+  // Moves to the first article at or after target, never backwards. Articles whose score is known
+  // to be below threshold may be skipped without being decoded.
+  long advance(long target, double threshold) throws IOException;
+
+  // Upper bound of any score this cursor can produce.
+  double maxScore();
+}
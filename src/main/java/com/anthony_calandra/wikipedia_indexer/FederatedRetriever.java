@@ -0,0 +1,256 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FileSystem;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Searches several independently built indexes (shards) as one. A query is planned once, with the
+// dfs and article counts of every shard summed, so articles score as they would in a single index
+// of the whole corpus and the best results of each shard can simply be merged. Shards collect
+// their dfs and rank their articles in parallel. Article offsets are only meaningful within the
+// shard's own collection, so results keep the shard they came from.
+final class FederatedRetriever {
+  private final List<ArticleRetriever> shards;
+  // One thread per shard but the first, which the calling thread searches itself. Kept apart from
+  // the fetch executor, whose tasks the shard tasks wait on.
+  private final ExecutorService executor;
+  private QueryMetrics metrics = new QueryMetrics();
+
+  static final class Result {
+    private final int shard;
+    private final Article article;
+
+    private Result(int shard, Article article) {
+      this.shard = shard;
+      this.article = article;
+    }
+
+    int getShard() {
+      return shard;
+    }
+
+    Article getArticle() {
+      return article;
+    }
+  }
+
+  private interface ShardTask<T> {
+    T call(int shard) throws IOException;
+  }
+
+  private FederatedRetriever(List<ArticleRetriever> shards) {
+    this.shards = shards;
+    this.executor = shards.size() > 1 ? Executors.newFixedThreadPool(shards.size() - 1) : null;
+    for (ArticleRetriever shard : shards) {
+      shard.setMetrics(metrics);
+    }
+  }
+
+  // collectionPaths may be null when every shard has a snippet store, otherwise it holds the
+  // collection of each shard, in the same order as indexPaths. fetchExecutor (may be null) is
+  // shared by the shards, and is shut down along with the shards opened so far if one fails to
+  // open.
+  static FederatedRetriever open(List<String> indexPaths, List<String> collectionPaths,
+      int resultLimit, ExecutorService fetchExecutor, FileSystem fs) throws IOException {
+    List<ArticleRetriever> shards = new ArrayList<>();
+    try {
+      for (int i = 0; i < indexPaths.size(); i++) {
+        ArticleRetriever shard = ArticleRetriever.open(indexPaths.get(i),
+            collectionPaths != null ? collectionPaths.get(i) : null, resultLimit, fs);
+        shards.add(shard);
+        shard.setFetchExecutor(fetchExecutor);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (fetchExecutor != null) {
+        fetchExecutor.shutdown();
+      }
+
+      for (ArticleRetriever shard : shards) {
+        try {
+          shard.close();
+        } catch (IOException | RuntimeException closeFailure) {
+          e.addSuppressed(closeFailure);
+        }
+      }
+
+      throw e;
+    }
+
+    return new FederatedRetriever(shards);
+  }
+
+  // Shards record their lookup and evaluation times concurrently, so those phases add up the time
+  // of every shard rather than the query's wall-clock time.
+  void setMetrics(QueryMetrics metrics) {
+    this.metrics = metrics;
+    for (ArticleRetriever shard : shards) {
+      shard.setMetrics(metrics);
+    }
+  }
+
+  QueryMetrics getMetrics() {
+    return metrics;
+  }
+
+  void close() throws IOException {
+    if (executor != null) {
+      executor.shutdown();
+    }
+
+    for (ArticleRetriever shard : shards) {
+      shard.close();
+    }
+  }
+
+  void runQuery(String q, int limit, PrintStream out) throws IOException {
+    List<Result> results = search(q, limit);
+    String[] lines = fetchLines(results);
+    out.println();
+    out.println("tf-idf\tArticle ID\tArticle");
+    for (int i = 0; i < lines.length; i++) {
+      out.println(results.get(i).getArticle().getTfidf() + "\t" + lines[i]);
+    }
+  }
+
+  List<Result> search(String q, final int limit) throws IOException {
+    long startTime = System.nanoTime();
+    metrics.increment(QueryMetrics.Counter.QUERIES, 1);
+    List<ArticleRetriever> segments = new ArrayList<>();
+    for (ArticleRetriever shard : shards) {
+      segments.addAll(shard.segments());
+    }
+
+    QueryPlan plan = QueryPlan.parse(
+        ArticleRetriever.expandWildcards(q.trim().split("\\s+"), segments));
+    metrics.record(QueryMetrics.Phase.PLAN, startTime);
+
+    final Set<String> terms = plan.terms();
+    final ArticleRetriever.Statistics[] shardStatistics =
+        new ArticleRetriever.Statistics[shards.size()];
+    final List<List<ArticleRetriever.Lookup>> lookups =
+        forEachShard(new ShardTask<List<ArticleRetriever.Lookup>>() {
+          @Override
+          public List<ArticleRetriever.Lookup> call(int shard) throws IOException {
+            shardStatistics[shard] = new ArticleRetriever.Statistics();
+            return shards.get(shard).collectStatistics(terms, shardStatistics[shard]);
+          }
+        });
+
+    final ArticleRetriever.Statistics statistics = new ArticleRetriever.Statistics();
+    for (ArticleRetriever.Statistics shard : shardStatistics) {
+      statistics.add(shard);
+    }
+
+    startTime = System.nanoTime();
+    final QueryPlan optimized = plan.optimize(statistics.getDfs());
+    metrics.record(QueryMetrics.Phase.PLAN, startTime);
+    List<List<Article>> ranked = forEachShard(new ShardTask<List<Article>>() {
+      @Override
+      public List<Article> call(int shard) throws IOException {
+        return shards.get(shard).rank(optimized, statistics, lookups.get(shard), limit);
+      }
+    });
+
+    List<Result> results = new ArrayList<>();
+    for (int shard = 0; shard < ranked.size(); shard++) {
+      for (Article article : ranked.get(shard)) {
+        results.add(new Result(shard, article));
+      }
+    }
+
+    Collections.sort(results, new Comparator<Result>() {
+      @Override
+      public int compare(Result result1, Result result2) {
+        int order = ArticleRetriever.RANKING.compare(result1.article, result2.article);
+        return order != 0 ? order : Integer.compare(result1.shard, result2.shard);
+      }
+    });
+
+    results = results.subList(0, Math.min(limit, results.size()));
+    metrics.increment(QueryMetrics.Counter.RESULTS, results.size());
+    return results;
+  }
+
+  // Fetches the lines of the given results (returned in the same order) from their shards.
+  String[] fetchLines(List<Result> results) throws IOException {
+    String[] lines = new String[results.size()];
+    for (int shard = 0; shard < shards.size(); shard++) {
+      List<Integer> indexes = new ArrayList<>();
+      List<Article> articles = new ArrayList<>();
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i).shard == shard) {
+          indexes.add(i);
+          articles.add(results.get(i).article);
+        }
+      }
+
+      if (articles.isEmpty()) {
+        continue;
+      }
+
+      String[] shardLines = shards.get(shard).fetchLines(articles);
+      for (int i = 0; i < shardLines.length; i++) {
+        lines[indexes.get(i)] = shardLines[i];
+      }
+    }
+
+    return lines;
+  }
+
+  // Runs the task for every shard, the first one on the calling thread, and returns the results
+  // in shard order.
+  private <T> List<T> forEachShard(final ShardTask<T> task) throws IOException {
+    List<Future<T>> futures = new ArrayList<>();
+    for (int shard = 1; shard < shards.size(); shard++) {
+      final int s = shard;
+      futures.add(executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws IOException {
+          return task.call(s);
+        }
+      }));
+    }
+
+    T first = null;
+    Throwable failure = null;
+    try {
+      first = task.call(0);
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+    }
+
+    List<T> results = new ArrayList<>();
+    results.add(first);
+    results.addAll(ArticleRetriever.awaitAll(futures, failure, "failed to search a shard"));
+    return results;
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+// Global facts about a built index, stored as <index>/_manifest (a properties file). The retriever
+// loads it once at startup instead of looking up per-partition statistics, and uses it to reject
+// indexes whose partition layout does not match what it is about to open.
+final class IndexManifest {
+  static final String FILE_NAME = "_manifest";
+  // Delta indexes of newly appended collection lines live in <index>/deltas/delta-NNNNN.
+  static final String DELTAS_DIRECTORY = "deltas";
+  private static final int VERSION = 1;
+  private static final String[] REQUIRED_KEYS =
+      {"manifest.version", "postings.version", "articles", "partitions", "partitioner"};
+  private final Properties properties;
+
+  private IndexManifest(Properties properties) {
+    this.properties = properties;
+  }
+
+  // Describes the partition files that were just written under indexPath.
+  static IndexManifest create(FileSystem fs, Path indexPath, long articles, long[] partitionTerms,
+      String partitioner) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("manifest.version", Integer.toString(VERSION));
+    properties.setProperty("postings.version", Integer.toString(PostingsFormat.CURRENT_VERSION));
+    properties.setProperty("articles", Long.toString(articles));
+    properties.setProperty("partitions", Integer.toString(partitionTerms.length));
+    properties.setProperty("partitioner", partitioner);
+    for (int i = 0; i < partitionTerms.length; i++) {
+      Path partition = partitionPath(indexPath, i);
+      properties.setProperty("partition." + i + ".terms", Long.toString(partitionTerms[i]));
+      properties.setProperty("partition." + i + ".data.length",
+          Long.toString(fs.getFileStatus(new Path(partition, MapFile.DATA_FILE_NAME)).getLen()));
+      properties.setProperty("partition." + i + ".index.crc32",
+          Long.toString(checksum(fs, new Path(partition, MapFile.INDEX_FILE_NAME))));
+    }
+
+    return new IndexManifest(properties);
+  }
+
+  // Returns null for indexes built before manifests existed.
+  static IndexManifest read(FileSystem fs, Path indexPath) throws IOException {
+    Path path = new Path(indexPath, FILE_NAME);
+    if (!fs.exists(path)) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try (FSDataInputStream in = fs.open(path)) {
+      properties.load(in);
+    }
+
+    for (String key : REQUIRED_KEYS) {
+      if (properties.getProperty(key) == null) {
+        throw new IOException("Index manifest is missing " + key + ": " + path);
+      }
+    }
+
+    IndexManifest manifest = new IndexManifest(properties);
+    if (manifest.getInt("manifest.version") > VERSION) {
+      throw new IOException("Unsupported index manifest version: " + path);
+    }
+
+    return manifest;
+  }
+
+  // The byte range of the collection the index covers. Indexes built from a directory of files
+  // don't record one.
+  IndexManifest setCollectionRange(long start, long end) {
+    properties.setProperty("collection.start", Long.toString(start));
+    properties.setProperty("collection.end", Long.toString(end));
+    return this;
+  }
+
+  // The largest df of each partition, where the builder recorded it.
+  IndexManifest setPartitionMaxDfs(long[] maxDfs) {
+    for (int i = 0; i < maxDfs.length; i++) {
+      properties.setProperty("partition." + i + ".max.df", Long.toString(maxDfs[i]));
+    }
+
+    return this;
+  }
+
+  void write(FileSystem fs, Path indexPath) throws IOException {
+    try (FSDataOutputStream out = fs.create(new Path(indexPath, FILE_NAME), true)) {
+      properties.store(out, "wikipedia-indexer index manifest");
+    }
+  }
+
+  // Checks that the partitions found on disk are the ones this manifest describes.
+  void validate(FileSystem fs, Path indexPath, int partitionsFound) throws IOException {
+    if (getPostingsVersion() > PostingsFormat.CURRENT_VERSION) {
+      throw new IOException("Index uses unsupported postings format " + getPostingsVersion());
+    }
+
+    if (TermPartitioner.MAP.equals(getPartitioner())) {
+      if (!fs.exists(new Path(indexPath, PartitionMap.FILE_NAME))) {
+        throw new IOException("Index is missing its partition map.");
+      }
+    } else if (!TermPartitioner.HASH.equals(getPartitioner())) {
+      throw new IOException("Index uses unsupported partitioner " + getPartitioner());
+    }
+
+    if (partitionsFound != getPartitions()) {
+      throw new IOException(String.format("Index manifest lists %d partitions but %d were found.",
+          getPartitions(), partitionsFound));
+    }
+
+    for (int i = 0; i < getPartitions(); i++) {
+      Path partition = partitionPath(indexPath, i);
+      long dataLength = fs.getFileStatus(new Path(partition, MapFile.DATA_FILE_NAME)).getLen();
+      long indexChecksum = checksum(fs, new Path(partition, MapFile.INDEX_FILE_NAME));
+      if (dataLength != getLong("partition." + i + ".data.length")
+          || indexChecksum != getLong("partition." + i + ".index.crc32")) {
+        throw new IOException("Index partition does not match the manifest: " + partition);
+      }
+    }
+  }
+
+  long getArticles() {
+    return getLong("articles");
+  }
+
+  int getPartitions() {
+    return getInt("partitions");
+  }
+
+  String getPartitioner() {
+    return properties.getProperty("partitioner");
+  }
+
+  int getPostingsVersion() {
+    return getInt("postings.version");
+  }
+
+  long getPartitionTerms(int partition) {
+    return getLong("partition." + partition + ".terms");
+  }
+
+  // -1 if it was not recorded.
+  long getPartitionMaxDf(int partition) {
+    String key = "partition." + partition + ".max.df";
+    return properties.getProperty(key) != null ? getLong(key) : -1;
+  }
+
+  // -1 if the range is unknown.
+  long getCollectionStart() {
+    return properties.getProperty("collection.start") != null ? getLong("collection.start") : -1;
+  }
+
+  long getCollectionEnd() {
+    return properties.getProperty("collection.end") != null ? getLong("collection.end") : -1;
+  }
+
+  static Path partitionPath(Path indexPath, int partition) {
+    return new Path(indexPath, String.format("part-r-%05d", partition));
+  }
+
+  // Reducers record the statistics of their partition here rather than in job counters, whose
+  // number is capped per job. The driver rolls them into the manifest and removes them.
+  static Path partitionStatsPath(Path indexPath, int partition) {
+    return new Path(indexPath, String.format("stats-r-%05d", partition));
+  }
+
+  static void writePartitionStats(FileSystem fs, Path indexPath, int partition, Properties stats)
+      throws IOException {
+    try (FSDataOutputStream out = fs.create(partitionStatsPath(indexPath, partition), true)) {
+      stats.store(out, null);
+    }
+  }
+
+  // Reads and deletes the statistics of a partition.
+  static Properties takePartitionStats(FileSystem fs, Path indexPath, int partition)
+      throws IOException {
+    Path path = partitionStatsPath(indexPath, partition);
+    Properties stats = new Properties();
+    try (FSDataInputStream in = fs.open(path)) {
+      stats.load(in);
+    }
+
+    fs.delete(path, false);
+    return stats;
+  }
+
+  // Only partitions with very large posting lists have one.
+  static Path sideFilePath(Path indexPath, int partition) {
+    return new Path(indexPath,
+        String.format("%sr-%05d", PostingsFormat.SIDE_FILE_PREFIX, partition));
+  }
+
+  static Path deltaPath(Path indexPath, int delta) {
+    return new Path(new Path(indexPath, DELTAS_DIRECTORY), String.format("delta-%05d", delta));
+  }
+
+  // The deltas of an index in the order they were built.
+  static List<Path> deltaPaths(FileSystem fs, Path indexPath) throws IOException {
+    List<Path> deltas = new ArrayList<>();
+    Path directory = new Path(indexPath, DELTAS_DIRECTORY);
+    if (!fs.exists(directory)) {
+      return deltas;
+    }
+
+    for (FileStatus status : fs.listStatus(directory)) {
+      if (status.isDirectory() && status.getPath().getName().startsWith("delta-")) {
+        deltas.add(status.getPath());
+      }
+    }
+
+    Collections.sort(deltas, new Comparator<Path>() {
+      @Override
+      public int compare(Path p1, Path p2) {
+        return p1.getName().compareTo(p2.getName());
+      }
+    });
+
+    return deltas;
+  }
+
+  private int getInt(String key) {
+    return (int) getLong(key);
+  }
+
+  private long getLong(String key) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      throw new IllegalStateException("Index manifest is missing " + key + ".");
+    }
+
+    return Long.parseLong(value);
+  }
+
+  private static long checksum(FileSystem fs, Path path) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[1 << 16];
+    try (FSDataInputStream in = fs.open(path)) {
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        crc.update(buffer, 0, read);
+      }
+    }
+
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,683 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import io.bespin.java.util.Tokenizer;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+import tl.lin.data.fd.Object2IntFrequencyDistribution;
+import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
+import tl.lin.data.pair.PairOfObjectInt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Builds the same index as BuildWikipediaIndex inside a single JVM, without a Hadoop job.
+//
+// One thread reads the collection and hands out chunks of whole lines. Every worker thread
+// tokenizes its chunks exactly like the index mapper and inverts them into its own in-memory
+// index, which is written out as sorted runs (one file per partition) whenever the worker's
+// share of the memory budget is used up. Each partition is then produced by a k-way merge of its
+// runs into a part-r-NNNNN MapFile, using the hash partitioning and posting format of the job.
+public class LocalIndexBuilder extends Configured implements Tool {
+  private static final Logger LOG = Logger.getLogger(LocalIndexBuilder.class);
+  private static final int CHUNK_BYTES = 4 << 20;
+
+  // A run of complete lines from the collection.
+  private static final class Chunk {
+    static final Chunk END = new Chunk(0);
+    byte[] data;
+    int length;
+    long[] offsets = new long[1024];
+    int[] starts = new int[1024];
+    int[] ends = new int[1024];
+    int lines;
+
+    Chunk(int capacity) {
+      data = new byte[capacity];
+    }
+
+    void append(byte b) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+
+      data[length++] = b;
+    }
+
+    void startLine(long offset) {
+      if (lines == offsets.length) {
+        offsets = Arrays.copyOf(offsets, lines * 2);
+        starts = Arrays.copyOf(starts, lines * 2);
+        ends = Arrays.copyOf(ends, lines * 2);
+      }
+
+      offsets[lines] = offset;
+      starts[lines] = length;
+    }
+
+    void endLine() {
+      ends[lines++] = length;
+    }
+  }
+
+  // Terms are written in unsigned UTF-8 byte order, the order Text keys have in a MapFile.
+  private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] b1, byte[] b2) {
+      int n = Math.min(b1.length, b2.length);
+      for (int i = 0; i < n; i++) {
+        int order = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+        if (order != 0) {
+          return order;
+        }
+      }
+
+      return b1.length - b2.length;
+    }
+  };
+
+  private final class Inverter implements Callable<Void> {
+    private final BlockingQueue<Chunk> chunks;
+    private final int id;
+    private final long memoryBudget;
+    private final Object2IntFrequencyDistribution<String> termCounts =
+        new Object2IntFrequencyDistributionEntry<>();
+    private Map<String, PostingsBuffer> index = new HashMap<>();
+    private long memoryUsed;
+    private int runs;
+    private IOException failure;
+
+    Inverter(BlockingQueue<Chunk> chunks, int id, long memoryBudget) {
+      this.chunks = chunks;
+      this.id = id;
+      this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public Void call() throws IOException, InterruptedException {
+      // Keep taking chunks after a failure so the reader is never left blocked on a full queue.
+      for (Chunk chunk = chunks.take(); chunk != Chunk.END; chunk = chunks.take()) {
+        if (failure == null) {
+          try {
+            invert(chunk);
+          } catch (IOException e) {
+            failure = e;
+          } catch (RuntimeException e) {
+            // E.g. a line without a numeric article id.
+            failure = new IOException("Failed to index a chunk of the collection", e);
+          }
+        }
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+
+      spill();
+      return null;
+    }
+
+    private void invert(Chunk chunk) throws IOException {
+      for (int line = 0; line < chunk.lines; line++) {
+        int start = chunk.starts[line];
+        if (chunk.ends[line] == start) {
+          continue;
+        }
+
+        // Same parsing, tokenization and tf as the index mapper.
+        int end = chunk.ends[line];
+        int tab = BuildWikipediaIndex.findTab(chunk.data, start, end);
+        if (tab < 0) {
+          throw new IOException("Article at offset " + chunk.offsets[line] + " has no id");
+        }
+
+        int articleId = BuildWikipediaIndex.parseArticleId(chunk.data, start, tab);
+        List<String> tokens = Tokenizer.tokenize(
+            new String(chunk.data, tab + 1, end - tab - 1, StandardCharsets.UTF_8));
+        articles.incrementAndGet();
+
+        termCounts.clear();
+        for (String token : tokens) {
+          termCounts.increment(token);
+        }
+
+        for (PairOfObjectInt<String> e : termCounts) {
+          PostingsBuffer postings = index.get(e.getLeftElement());
+          if (postings == null) {
+            postings = new PostingsBuffer();
+            index.put(e.getLeftElement(), postings);
+            memoryUsed += PostingsBuffer.TERM_BYTES + 2 * e.getLeftElement().length();
+          }
+
+          postings.add(chunk.offsets[line], (float) e.getRightElement() / tokens.size(),
+              articleId);
+          memoryUsed += PostingsBuffer.POSTING_BYTES;
+        }
+
+        if (memoryUsed >= memoryBudget) {
+          spill();
+        }
+      }
+    }
+
+    // Writes the in-memory index as one sorted run per partition and starts a new one.
+    private void spill() throws IOException {
+      if (index.isEmpty()) {
+        return;
+      }
+
+      List<byte[]> terms = new ArrayList<>(index.size());
+      Map<byte[], PostingsBuffer> postingsByTerm = new HashMap<>(index.size() * 2);
+      for (Map.Entry<String, PostingsBuffer> entry : index.entrySet()) {
+        byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        terms.add(term);
+        postingsByTerm.put(term, entry.getValue());
+      }
+
+      terms.sort(BYTE_ORDER);
+      DataOutputStream[] outs = new DataOutputStream[partitions];
+      try {
+        for (int p = 0; p < partitions; p++) {
+          outs[p] = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(runFile(p, id, runs)), 1 << 16));
+        }
+
+        for (byte[] term : terms) {
+          PostingsBuffer postings = postingsByTerm.get(term);
+          DataOutputStream out = outs[TermPartitioner.hashPartition(
+              new String(term, StandardCharsets.UTF_8), partitions)];
+          WritableUtils.writeVInt(out, term.length);
+          out.write(term);
+          WritableUtils.writeVInt(out, postings.size);
+          long previousOffset = 0;
+          for (int i = 0; i < postings.size; i++) {
+            WritableUtils.writeVLong(out, postings.offsets[i] - previousOffset);
+            out.writeFloat(postings.tfs[i]);
+            WritableUtils.writeVInt(out, postings.articleIds[i]);
+            previousOffset = postings.offsets[i];
+          }
+        }
+      } finally {
+        for (DataOutputStream out : outs) {
+          if (out != null) {
+            out.close();
+          }
+        }
+      }
+
+      LOG.info(String.format("Worker %d spilled run %d: %d terms, ~%d MB", id, runs, terms.size(),
+          memoryUsed >> 20));
+      runs++;
+      index = new HashMap<>();
+      memoryUsed = 0;
+    }
+  }
+
+  // Sequential reader of one run file.
+  private static final class RunReader {
+    private final DataInputStream in;
+    private final int run;
+    byte[] term;
+
+    RunReader(File file, int run) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      this.run = run;
+    }
+
+    // Moves to the next term; false at the end of the run.
+    boolean nextTerm() throws IOException {
+      int length;
+      try {
+        length = WritableUtils.readVInt(in);
+      } catch (EOFException e) {
+        return false;
+      }
+
+      term = new byte[length];
+      in.readFully(term);
+      return true;
+    }
+
+    PostingsBuffer readPostings() throws IOException {
+      int size = WritableUtils.readVInt(in);
+      PostingsBuffer postings = new PostingsBuffer(size);
+      long offset = 0;
+      for (int i = 0; i < size; i++) {
+        offset += WritableUtils.readVLong(in);
+        postings.add(offset, in.readFloat(), WritableUtils.readVInt(in));
+      }
+
+      return postings;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private final AtomicLong articles = new AtomicLong();
+  private int partitions;
+  private int inlinePostingsBytes;
+  // End of the collection when it was read.
+  private long end;
+  private File runDirectory;
+
+  private File runFile(int partition, int worker, int run) {
+    return new File(runDirectory, String.format("run-%05d-%d-%d", partition, worker, run));
+  }
+
+  private LocalIndexBuilder() {}
+
+  private static final class Args {
+    @Option(name = "-input", metaVar = "[path]", required = true, usage = "collection file")
+    String input;
+
+    @Option(name = "-output", metaVar = "[path]", usage = "output path")
+    String output;
+
+    @Option(name = "-appendTo", metaVar = "[path]",
+        usage = "index only the lines appended to the collection since this index (and its deltas) "
+            + "were built, as a new delta of it")
+    String appendTo;
+
+    @Option(name = "-partitions", metaVar = "[num]", usage = "number of index partitions")
+    int partitions = 1;
+
+    @Option(name = "-threads", metaVar = "[num]", usage = "number of indexing threads")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-memoryMB", metaVar = "[num]",
+        usage = "memory for in-memory postings across all threads before runs are spilled")
+    int memoryMB = 1024;
+
+    @Option(name = "-tmp", metaVar = "[path]", usage = "local directory for spilled runs")
+    String tmp = System.getProperty("java.io.tmpdir");
+
+    @Option(name = "-inlinePostingsKB", metaVar = "[num]",
+        usage = "posting lists encoded larger than this go to a side file")
+    int inlinePostingsKB = 1024;
+
+    @Option(name = "-noSnippets", usage = "don't build the snippet store")
+    boolean noSnippets = false;
+  }
+
+  @Override
+  public int run(String[] argv) throws Exception {
+    final Args args = new Args();
+    CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      return -1;
+    }
+
+    if ((args.output == null) == (args.appendTo == null)) {
+      System.err.println("Exactly one of -output and -appendTo is required.");
+      parser.printUsage(System.err);
+      return -1;
+    }
+
+    FileSystem fs = FileSystem.get(getConf());
+    Path inputPath = new Path(args.input);
+    Path outputDir = args.output != null ? new Path(args.output) : null;
+    long start = 0;
+    if (args.appendTo != null) {
+      // The delta starts where the index or its newest delta stopped.
+      Path indexPath = new Path(args.appendTo);
+      List<Path> deltas = IndexManifest.deltaPaths(fs, indexPath);
+      IndexManifest last = IndexManifest.read(fs,
+          deltas.isEmpty() ? indexPath : deltas.get(deltas.size() - 1));
+      if (last == null || last.getCollectionEnd() < 0) {
+        System.err.println("The index does not record which part of the collection it covers.");
+        return -1;
+      }
+
+      start = last.getCollectionEnd();
+      if (start >= fs.getFileStatus(inputPath).getLen()) {
+        System.out.println("No lines were appended to the collection.");
+        return 0;
+      }
+
+      outputDir = IndexManifest.deltaPath(indexPath, deltas.size() + 1);
+    }
+
+    LOG.info("Tool: " + LocalIndexBuilder.class.getSimpleName());
+    LOG.info(" - input path: " + args.input);
+    LOG.info(" - output path: " + outputDir);
+    LOG.info(" - start offset: " + start);
+    LOG.info(" - partitions: " + args.partitions);
+    LOG.info(" - threads: " + args.threads);
+
+    if (!fs.getFileStatus(inputPath).isFile()) {
+      // Offsets are only unique within a single file.
+      System.err.println("The input must be a single collection file.");
+      return -1;
+    }
+
+    partitions = args.partitions;
+    inlinePostingsBytes = args.inlinePostingsKB * 1024;
+    int threads = Math.max(1, args.threads);
+    fs.delete(outputDir, true);
+    runDirectory = Files.createTempDirectory(new File(args.tmp).toPath(), "index-runs").toFile();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long startTime = System.currentTimeMillis();
+      List<Inverter> inverters = invert(fs, inputPath, start, executor, threads,
+          args.memoryMB * 1024L * 1024L / threads);
+      System.out.println("Inverted " + articles.get() + " articles in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+      startTime = System.currentTimeMillis();
+      long[] partitionTerms = merge(fs, outputDir, executor, inverters);
+      fs.create(new Path(outputDir, "_SUCCESS"), true).close();
+      System.out.println("Merged " + partitions + " partitions in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+      startTime = System.currentTimeMillis();
+      TermDictionary.build(fs, getConf(), outputDir, partitions);
+      System.out.println("Term dictionary built in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+      IndexManifest.create(fs, outputDir, articles.get(), partitionTerms, TermPartitioner.HASH)
+          .setCollectionRange(start, end).write(fs, outputDir);
+    } finally {
+      executor.shutdownNow();
+      FileUtil.fullyDelete(runDirectory);
+    }
+
+    if (!args.noSnippets) {
+      long startTime = System.currentTimeMillis();
+      SnippetStore.build(fs, inputPath, outputDir, start, end);
+      System.out.println("Snippet store built in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+      // Bitmaps number articles by their snippet store entry.
+      startTime = System.currentTimeMillis();
+      BitmapIndex.build(fs, outputDir);
+      System.out.println("Bitmaps built in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+    }
+
+    return 0;
+  }
+
+  // Splits the collection from start on into chunks of lines (offsets computed like
+  // TextInputFormat) and feeds them to the inverters. Sets end to where the collection ended.
+  private List<Inverter> invert(FileSystem fs, Path inputPath, long start,
+      ExecutorService executor, int threads, long memoryBudget)
+      throws IOException, InterruptedException {
+    BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(threads * 2);
+    List<Inverter> inverters = new ArrayList<>();
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Inverter inverter = new Inverter(chunks, i, memoryBudget);
+      inverters.add(inverter);
+      futures.add(executor.submit(inverter));
+    }
+
+    try (FSDataInputStream in = fs.open(inputPath)) {
+      if (start > 0) {
+        // Appended lines have to start a line of their own.
+        in.seek(start - 1);
+        int previous = in.read();
+        if (previous != '\n' && previous != '\r') {
+          throw new IOException("Offset " + start + " is not at the start of a line.");
+        }
+      }
+
+      byte[] buffer = new byte[1 << 16];
+      long offset = start;
+      boolean afterCarriageReturn = false;
+      Chunk chunk = new Chunk(CHUNK_BYTES + 4096);
+      chunk.startLine(start);
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        for (int i = 0; i < read; i++, offset++) {
+          byte b = buffer[i];
+          if (b == '\n' && afterCarriageReturn) {
+            // Second half of a "\r\n" terminator.
+            afterCarriageReturn = false;
+            chunk.offsets[chunk.lines] = offset + 1;
+            continue;
+          }
+
+          afterCarriageReturn = b == '\r';
+          if (b == '\n' || b == '\r') {
+            chunk.endLine();
+            if (chunk.length >= CHUNK_BYTES) {
+              chunks.put(chunk);
+              chunk = new Chunk(CHUNK_BYTES + 4096);
+            }
+
+            chunk.startLine(offset + 1);
+          } else {
+            chunk.append(b);
+          }
+        }
+      }
+
+      chunk.endLine();
+      chunks.put(chunk);
+      end = offset;
+    } finally {
+      for (int i = 0; i < threads; i++) {
+        chunks.put(Chunk.END);
+      }
+    }
+
+    waitFor(futures);
+    return inverters;
+  }
+
+  private long[] merge(final FileSystem fs, final Path outputDir, ExecutorService executor,
+      final List<Inverter> inverters) throws IOException, InterruptedException {
+    final long[] partitionTerms = new long[partitions];
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int p = 0; p < partitions; p++) {
+      final int partition = p;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          partitionTerms[partition] = mergePartition(fs, outputDir, partition, inverters);
+          return null;
+        }
+      }));
+    }
+
+    waitFor(futures);
+    return partitionTerms;
+  }
+
+  // Merges the runs of one partition into its MapFile and returns the number of terms written.
+  private long mergePartition(FileSystem fs, Path outputDir, int partition,
+      List<Inverter> inverters) throws IOException {
+    PriorityQueue<RunReader> readers = new PriorityQueue<>(new Comparator<RunReader>() {
+      @Override
+      public int compare(RunReader r1, RunReader r2) {
+        int order = BYTE_ORDER.compare(r1.term, r2.term);
+        return order != 0 ? order : Integer.compare(r1.run, r2.run);
+      }
+    });
+
+    List<RunReader> open = new ArrayList<>();
+    Text key = new Text();
+    ByteArrayOutputStream value = new ByteArrayOutputStream();
+    long terms = 0;
+    Path sideFilePath = IndexManifest.sideFilePath(outputDir, partition);
+    long sideFileLength;
+    try (FSDataOutputStream sideFile = fs.create(sideFilePath, true);
+         MapFile.Writer out = new MapFile.Writer(getConf(),
+        IndexManifest.partitionPath(outputDir, partition),
+        MapFile.Writer.keyClass(Text.class), MapFile.Writer.valueClass(BytesWritable.class),
+        MapFile.Writer.compression(SequenceFile.CompressionType.NONE))) {
+      PostingsWriter writer = new PostingsWriter(sideFile, inlinePostingsBytes);
+      for (Inverter inverter : inverters) {
+        for (int run = 0; run < inverter.runs; run++) {
+          RunReader reader = new RunReader(runFile(partition, inverter.id, run), open.size());
+          open.add(reader);
+          if (reader.nextTerm()) {
+            readers.add(reader);
+          }
+        }
+      }
+
+      List<PostingsBuffer> sources = new ArrayList<>();
+      List<RunReader> advanced = new ArrayList<>();
+      while (!readers.isEmpty()) {
+        byte[] term = readers.peek().term;
+        sources.clear();
+        advanced.clear();
+        while (!readers.isEmpty() && BYTE_ORDER.compare(readers.peek().term, term) == 0) {
+          RunReader reader = readers.poll();
+          sources.add(reader.readPostings());
+          advanced.add(reader);
+        }
+
+        writer.reset();
+        mergePostings(sources, writer);
+        value.reset();
+        writer.writeTo(value);
+        key.set(term, 0, term.length);
+        out.append(key, new BytesWritable(value.toByteArray()));
+        terms++;
+
+        for (RunReader reader : advanced) {
+          if (reader.nextTerm()) {
+            readers.add(reader);
+          }
+        }
+      }
+
+      sideFileLength = sideFile.getPos();
+    } finally {
+      for (RunReader reader : open) {
+        reader.close();
+      }
+    }
+
+    if (sideFileLength == 0) {
+      fs.delete(sideFilePath, false);
+    }
+
+    return terms;
+  }
+
+  // Different workers saw interleaved chunks of the collection, so a term's runs have to be
+  // merged by offset. The sources are kept in a heap keyed on their next offset.
+  private static void mergePostings(final List<PostingsBuffer> sources, PostingsWriter writer)
+      throws IOException {
+    if (sources.size() == 1) {
+      PostingsBuffer source = sources.get(0);
+      for (int i = 0; i < source.size; i++) {
+        writer.add(source.offsets[i], source.tfs[i], source.articleIds[i]);
+      }
+
+      return;
+    }
+
+    final int[] positions = new int[sources.size()];
+    PriorityQueue<Integer> heap = new PriorityQueue<>(sources.size(), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer s1, Integer s2) {
+        return Long.compare(sources.get(s1).offsets[positions[s1]],
+            sources.get(s2).offsets[positions[s2]]);
+      }
+    });
+
+    for (int s = 0; s < positions.length; s++) {
+      if (sources.get(s).size > 0) {
+        heap.add(s);
+      }
+    }
+
+    while (!heap.isEmpty()) {
+      int next = heap.poll();
+      PostingsBuffer source = sources.get(next);
+      int i = positions[next]++;
+      writer.add(source.offsets[i], source.tfs[i], source.articleIds[i]);
+      if (positions[next] < source.size) {
+        heap.add(next);
+      }
+    }
+  }
+
+  private static void waitFor(List<Future<Void>> futures)
+      throws IOException, InterruptedException {
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolRunner.run(new LocalIndexBuilder(), args);
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Replays the matches of a cursor that was evaluated once up front, so a subexpression that
+// occurs several times in a query is only computed once.
+final class MaterializedCursor implements DocCursor {
+  private final Matches matches;
+  private int index = -1;
+  private long offset = -1;
+
+  static final class Matches {
+    private long[] offsets = new long[16];
+    private int[] articleIds = new int[16];
+    private double[] scores = new double[16];
+    private int size;
+    private double maxScore = Double.NEGATIVE_INFINITY;
+
+    private Matches() {}
+
+    // Drains the cursor, which is left exhausted.
+    static Matches collect(DocCursor cursor) throws IOException {
+      Matches matches = new Matches();
+      long target = 0;
+      while (cursor.advance(target, Double.NEGATIVE_INFINITY) != NO_MORE_DOCS) {
+        matches.add(cursor.offset(), cursor.articleId(), cursor.score());
+        target = cursor.offset() + 1;
+      }
+
+      return matches;
+    }
+
+    int size() {
+      return size;
+    }
+
+    private void add(long offset, int articleId, double score) {
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * size);
+        articleIds = Arrays.copyOf(articleIds, 2 * size);
+        scores = Arrays.copyOf(scores, 2 * size);
+      }
+
+      offsets[size] = offset;
+      articleIds[size] = articleId;
+      scores[size] = score;
+      maxScore = Math.max(maxScore, score);
+      size++;
+    }
+  }
+
+  MaterializedCursor(Matches matches) {
+    this.matches = matches;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return matches.articleIds[index];
+  }
+
+  @Override
+  public double score() {
+    return matches.scores[index];
+  }
+
+  @Override
+  public double maxScore() {
+    return matches.maxScore;
+  }
+
+  @Override
+  public long advance(long target, double threshold) {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    if (offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    int i = Arrays.binarySearch(matches.offsets, Math.max(index, 0), matches.size, target);
+    i = i < 0 ? -i - 1 : i;
+    while (i < matches.size && matches.scores[i] < threshold) {
+      i++;
+    }
+
+    index = i;
+    offset = i < matches.size ? matches.offsets[i] : NO_MORE_DOCS;
+    return offset;
+  }
+}
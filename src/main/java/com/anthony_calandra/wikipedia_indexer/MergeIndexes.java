@@ -0,0 +1,278 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Folds the deltas of an index (see LocalIndexBuilder -appendTo) back into it. The partitions of
+// the index and all of its deltas are merged term by term; since every delta covers lines after
+// those of the index before it, a term's posting lists are simply concatenated. The result keeps
+// the partitioning of the index, is written next to it and then replaces it, deltas included.
+// Nothing may append deltas while the merge runs.
+public class MergeIndexes extends Configured implements Tool {
+  private static final Logger LOG = Logger.getLogger(MergeIndexes.class);
+
+  private MergeIndexes() {}
+
+  // The terms of one partition of one of the merged indexes, in order.
+  private static final class PartitionReader implements Closeable {
+    private final SequenceFile.Reader reader;
+    private final ByteSource sideFile;
+    private final int segment;
+    private final Text key = new Text();
+    private final BytesWritable value = new BytesWritable();
+
+    PartitionReader(FileSystem fs, Path indexPath, int partition, int segment) throws IOException {
+      Path sideFilePath = IndexManifest.sideFilePath(indexPath, partition);
+      this.reader = new SequenceFile.Reader(fs.getConf(), SequenceFile.Reader.file(
+          new Path(IndexManifest.partitionPath(indexPath, partition), MapFile.DATA_FILE_NAME)));
+      this.sideFile = fs.exists(sideFilePath) ? ByteSource.open(fs, sideFilePath) : null;
+      this.segment = segment;
+    }
+
+    boolean next() throws IOException {
+      return reader.next(key, value);
+    }
+
+    PostingList postings() throws IOException {
+      return PostingList.parse(ByteBuffer.wrap(value.getBytes(), 0, value.getLength()), sideFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+      if (sideFile != null) {
+        sideFile.close();
+      }
+    }
+  }
+
+  private static final class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    String index;
+
+    @Option(name = "-inlinePostingsKB", metaVar = "[num]",
+        usage = "posting lists encoded larger than this go to a side file")
+    int inlinePostingsKB = 1024;
+  }
+
+  @Override
+  public int run(String[] argv) throws Exception {
+    final Args args = new Args();
+    CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      return -1;
+    }
+
+    LOG.info("Tool: " + MergeIndexes.class.getSimpleName());
+    LOG.info(" - index path: " + args.index);
+
+    FileSystem fs = FileSystem.get(getConf());
+    Path indexPath = new Path(args.index);
+    List<Path> segments = new ArrayList<>();
+    segments.add(indexPath);
+    segments.addAll(IndexManifest.deltaPaths(fs, indexPath));
+    if (segments.size() == 1) {
+      System.out.println("The index has no deltas.");
+      return 0;
+    }
+
+    List<IndexManifest> manifests = new ArrayList<>();
+    long articles = 0;
+    boolean snippets = true;
+    for (Path segment : segments) {
+      IndexManifest manifest = IndexManifest.read(fs, segment);
+      if (manifest == null) {
+        System.err.println("Index has no manifest: " + segment);
+        return -1;
+      }
+
+      manifests.add(manifest);
+      articles += manifest.getArticles();
+      snippets &= SnippetStore.exists(fs, segment);
+    }
+
+    IndexManifest base = manifests.get(0);
+    PartitionMap partitionMap = PartitionMap.hash(base.getPartitions());
+    if (TermPartitioner.MAP.equals(base.getPartitioner())) {
+      partitionMap = PartitionMap.read(fs, new Path(indexPath, PartitionMap.FILE_NAME));
+    }
+
+    Path merged = new Path(indexPath.getParent(), indexPath.getName() + ".merging");
+    fs.delete(merged, true);
+    long startTime = System.currentTimeMillis();
+    long[] partitionTerms = merge(fs, segments, manifests, merged, partitionMap,
+        args.inlinePostingsKB * 1024);
+    fs.create(new Path(merged, "_SUCCESS"), true).close();
+    if (TermPartitioner.MAP.equals(base.getPartitioner())) {
+      partitionMap.write(fs, new Path(merged, PartitionMap.FILE_NAME));
+    }
+
+    System.out.println("Merged " + segments.size() + " indexes in "
+        + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+    TermDictionary.build(fs, getConf(), merged, partitionTerms.length);
+    IndexManifest.create(fs, merged, articles, partitionTerms, base.getPartitioner())
+        .setCollectionRange(base.getCollectionStart(),
+            manifests.get(manifests.size() - 1).getCollectionEnd())
+        .write(fs, merged);
+    if (snippets) {
+      SnippetStore.merge(fs, segments, merged);
+      BitmapIndex.build(fs, merged);
+    }
+
+    Path old = new Path(indexPath.getParent(), indexPath.getName() + ".old");
+    fs.delete(old, true);
+    if (!fs.rename(indexPath, old) || !fs.rename(merged, indexPath)) {
+      throw new IOException("Failed to replace " + indexPath + " with " + merged);
+    }
+
+    fs.delete(old, true);
+    LOG.info("Merged " + articles + " articles");
+    return 0;
+  }
+
+  // Writes the merged partitions and returns the number of terms in each.
+  private long[] merge(FileSystem fs, List<Path> segments, List<IndexManifest> manifests,
+      Path merged, PartitionMap partitionMap, int inlinePostingsBytes) throws IOException {
+    PriorityQueue<PartitionReader> readers = new PriorityQueue<>(new Comparator<PartitionReader>() {
+      @Override
+      public int compare(PartitionReader r1, PartitionReader r2) {
+        int order = r1.key.compareTo(r2.key);
+        return order != 0 ? order : Integer.compare(r1.segment, r2.segment);
+      }
+    });
+
+    int partitions = partitionMap.getPartitions();
+    List<PartitionReader> open = new ArrayList<>();
+    MapFile.Writer[] out = new MapFile.Writer[partitions];
+    FSDataOutputStream[] sideFiles = new FSDataOutputStream[partitions];
+    PostingsWriter[] writers = new PostingsWriter[partitions];
+    long[] partitionTerms = new long[partitions];
+    try {
+      for (int i = 0; i < segments.size(); i++) {
+        for (int partition = 0; partition < manifests.get(i).getPartitions(); partition++) {
+          PartitionReader reader = new PartitionReader(fs, segments.get(i), partition, i);
+          open.add(reader);
+          if (reader.next()) {
+            readers.add(reader);
+          }
+        }
+      }
+
+      for (int partition = 0; partition < partitions; partition++) {
+        sideFiles[partition] = fs.create(IndexManifest.sideFilePath(merged, partition), true);
+        out[partition] = new MapFile.Writer(getConf(),
+            IndexManifest.partitionPath(merged, partition),
+            MapFile.Writer.keyClass(Text.class), MapFile.Writer.valueClass(BytesWritable.class),
+            MapFile.Writer.compression(SequenceFile.CompressionType.NONE));
+        writers[partition] = new PostingsWriter(sideFiles[partition], inlinePostingsBytes);
+      }
+
+      Text term = new Text();
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      List<PartitionReader> advanced = new ArrayList<>();
+      while (!readers.isEmpty()) {
+        term.set(readers.peek().key);
+        int partition = partitionMap.partition(term.getBytes(), 0, term.getLength());
+        PostingsWriter writer = writers[partition];
+        writer.reset();
+        advanced.clear();
+        // Readers of the same term come out in index order, which is offset order.
+        while (!readers.isEmpty() && readers.peek().key.equals(term)) {
+          PartitionReader reader = readers.poll();
+          PostingsReader postings = new PostingsReader(reader.postings());
+          while (postings.nextBlock()) {
+            for (int i = 0; i < postings.blockSize(); i++) {
+              writer.add(postings.offsets()[i], postings.tfs()[i], postings.articleIds()[i]);
+            }
+          }
+
+          advanced.add(reader);
+        }
+
+        value.reset();
+        writer.writeTo(value);
+        out[partition].append(term, new BytesWritable(value.toByteArray()));
+        partitionTerms[partition]++;
+        for (PartitionReader reader : advanced) {
+          if (reader.next()) {
+            readers.add(reader);
+          }
+        }
+      }
+    } finally {
+      for (PartitionReader reader : open) {
+        reader.close();
+      }
+
+      for (int partition = 0; partition < partitions; partition++) {
+        if (out[partition] != null) {
+          out[partition].close();
+        }
+
+        if (sideFiles[partition] != null) {
+          sideFiles[partition].close();
+        }
+      }
+    }
+
+    for (int partition = 0; partition < partitions; partition++) {
+      Path sideFile = IndexManifest.sideFilePath(merged, partition);
+      if (fs.getFileStatus(sideFile).getLen() == 0) {
+        fs.delete(sideFile, false);
+      }
+    }
+
+    return partitionTerms;
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolRunner.run(new MergeIndexes(), args);
+  }
+}
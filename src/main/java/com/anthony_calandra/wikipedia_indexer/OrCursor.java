@@ -0,0 +1,99 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Union of two cursors. An article found by both operands keeps the right operand's score, the
+// same precedence the set based evaluation had.
+//
+// Pruning has to respect that precedence: the left operand may skip articles below the
+// threshold, but the right one must then be walked exactly because it decides which score an
+// article gets. Once the left operand cannot reach the threshold at all, only articles from the
+// right one can qualify and it is pruned instead.
+final class OrCursor implements DocCursor {
+  private final DocCursor left;
+  private final DocCursor right;
+  private DocCursor current;
+  private long offset = -1;
+
+  OrCursor(DocCursor left, DocCursor right) {
+    this.left = left;
+    this.right = right;
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return current.articleId();
+  }
+
+  @Override
+  public double score() {
+    return current.score();
+  }
+
+  @Override
+  public double maxScore() {
+    return Math.max(left.maxScore(), right.maxScore());
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    if (offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    while (true) {
+      if (left.maxScore() < threshold) {
+        current = right;
+        offset = right.advance(target, threshold);
+        return offset;
+      }
+
+      long rightOffset = right.advance(target, Double.NEGATIVE_INFINITY);
+      long leftOffset = left.advance(target, threshold);
+      if (rightOffset == NO_MORE_DOCS && leftOffset == NO_MORE_DOCS) {
+        offset = NO_MORE_DOCS;
+        return offset;
+      }
+
+      current = rightOffset <= leftOffset ? right : left;
+      offset = current.offset();
+      if (current.score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A whole index packed into one file. Opening it maps the file and reads its table instead of
+// listing the index directory and opening a reader per partition, and every lookup is served
+// straight from the mapping, which the page cache shares between processes.
+//
+//   int MAGIC, int VERSION
+//   regions  posting lists of every term, in term order
+//            a term dictionary whose positions point into the posting lists region
+//            the side file of each partition, the bitmaps, the snippet store index and data;
+//            empty when the index has none
+//   table    int partitions, long articles, long collection start, long collection end,
+//            long position and long length of each region, in the order above
+//   long table position
+//
+// Pack an index that has a term dictionary and no deltas with:
+//   java -cp target/wikipedia-indexer-1.0.jar \
+//     com.anthony_calandra.wikipedia_indexer.PackedIndex \
+//     -index wikipedia-index -output wikipedia-index.pack
+// and query the file by passing it as the index path.
+public class PackedIndex implements Closeable {
+  private static final Logger LOG = Logger.getLogger(PackedIndex.class);
+  private static final int MAGIC = 0x5041434b;
+  private static final int VERSION = 1;
+  private static final int POSTINGS = 0;
+  private static final int DICTIONARY = 1;
+  private static final int SIDE_FILES = 2;
+  // Regions after the side files.
+  private static final int BITMAPS = 0;
+  private static final int SNIPPET_INDEX = 1;
+  private static final int SNIPPET_DATA = 2;
+  private final ByteSource source;
+  private final ByteSource postings;
+  private final TermDictionary dictionary;
+  private final ByteSource[] sideFiles;
+  private final SnippetStore snippets;
+  private final BitmapIndex bitmaps;
+  private final long articles;
+  private final long collectionStart;
+  private final long collectionEnd;
+
+  private PackedIndex(ByteSource source, ByteSource postings, TermDictionary dictionary,
+      ByteSource[] sideFiles, SnippetStore snippets, BitmapIndex bitmaps, long articles,
+      long collectionStart, long collectionEnd) {
+    this.source = source;
+    this.postings = postings;
+    this.dictionary = dictionary;
+    this.sideFiles = sideFiles;
+    this.snippets = snippets;
+    this.bitmaps = bitmaps;
+    this.articles = articles;
+    this.collectionStart = collectionStart;
+    this.collectionEnd = collectionEnd;
+  }
+
+  static PackedIndex open(FileSystem fs, Path path) throws IOException {
+    ByteSource source = ByteSource.open(fs, path);
+    try {
+      if (source.length() < 16 || source.readLong(0) >>> 32 != MAGIC) {
+        throw new IOException("Not a packed index: " + path);
+      }
+
+      if ((int) source.readLong(0) > VERSION) {
+        throw new IOException("Unsupported packed index version: " + (int) source.readLong(0));
+      }
+
+      long tablePosition = source.readLong(source.length() - 8);
+      ByteBuffer table =
+          source.buffer(tablePosition, (int) (source.length() - 8 - tablePosition));
+      int partitions = table.getInt();
+      long articles = table.getLong();
+      long collectionStart = table.getLong();
+      long collectionEnd = table.getLong();
+      ByteSource[] regions = new ByteSource[SIDE_FILES + partitions + 3];
+      for (int i = 0; i < regions.length; i++) {
+        long position = table.getLong();
+        regions[i] = source.slice(position, table.getLong());
+      }
+
+      // Regions that are binary searched go to the heap when the file is not mapped, as they do
+      // in an unpacked index.
+      boolean mapped = fs instanceof LocalFileSystem;
+      ByteSource[] sideFiles = new ByteSource[partitions];
+      for (int i = 0; i < partitions; i++) {
+        sideFiles[i] = regions[SIDE_FILES + i].length() > 0 ? regions[SIDE_FILES + i] : null;
+      }
+
+      TermDictionary dictionary = TermDictionary.open(
+          mapped ? regions[DICTIONARY] : ByteSource.load(regions[DICTIONARY]), path + " dictionary");
+      int extra = SIDE_FILES + partitions;
+      SnippetStore snippets = null;
+      BitmapIndex bitmaps = null;
+      if (regions[extra + SNIPPET_INDEX].length() > 0) {
+        ByteSource index = regions[extra + SNIPPET_INDEX];
+        snippets = SnippetStore.open(mapped ? index : ByteSource.load(index),
+            regions[extra + SNIPPET_DATA], path + " snippets");
+        if (regions[extra + BITMAPS].length() > 0) {
+          ByteSource bitmapSource = regions[extra + BITMAPS];
+          bitmaps = BitmapIndex.open(mapped ? bitmapSource : ByteSource.load(bitmapSource),
+              snippets, path + " bitmaps");
+        }
+      }
+
+      return new PackedIndex(source, regions[POSTINGS], dictionary, sideFiles, snippets, bitmaps,
+          articles, collectionStart, collectionEnd);
+    } catch (IOException e) {
+      source.close();
+      throw e;
+    }
+  }
+
+  int getPartitions() {
+    return sideFiles.length;
+  }
+
+  // The posting lists, at the positions the dictionary gives.
+  ByteSource getPostings() {
+    return postings;
+  }
+
+  TermDictionary getDictionary() {
+    return dictionary;
+  }
+
+  // Null where a partition has no side file.
+  ByteSource[] getSideFiles() {
+    return sideFiles;
+  }
+
+  // Null if the index has none.
+  SnippetStore getSnippets() {
+    return snippets;
+  }
+
+  // Null if the index has none.
+  BitmapIndex getBitmaps() {
+    return bitmaps;
+  }
+
+  long getArticles() {
+    return articles;
+  }
+
+  long getCollectionStart() {
+    return collectionStart;
+  }
+
+  long getCollectionEnd() {
+    return collectionEnd;
+  }
+
+  @Override
+  public void close() throws IOException {
+    dictionary.close();
+    if (snippets != null) {
+      snippets.close();
+    }
+
+    if (bitmaps != null) {
+      bitmaps.close();
+    }
+
+    source.close();
+  }
+
+  static void pack(FileSystem fs, Path indexPath, Path output) throws IOException {
+    IndexManifest manifest = IndexManifest.read(fs, indexPath);
+    if (manifest == null || !TermDictionary.exists(fs, indexPath)) {
+      throw new IOException("Only indexes with a manifest and a term dictionary can be packed: "
+          + indexPath);
+    }
+
+    if (!IndexManifest.deltaPaths(fs, indexPath).isEmpty()) {
+      throw new IOException("Merge the deltas of the index with MergeIndexes before packing it.");
+    }
+
+    int partitions = manifest.getPartitions();
+    final ByteSource[] dataFiles = new ByteSource[partitions];
+    TermDictionary dictionary = TermDictionary.open(fs, indexPath);
+    long[] regions = new long[2 * (SIDE_FILES + partitions + 3)];
+    try (final FSDataOutputStream out = fs.create(output, true)) {
+      for (int i = 0; i < partitions; i++) {
+        dataFiles[i] = ByteSource.open(fs,
+            new Path(IndexManifest.partitionPath(indexPath, i), MapFile.DATA_FILE_NAME));
+      }
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      regions[2 * POSTINGS] = out.getPos();
+      final byte[][] buffer = {new byte[64 * 1024]};
+      dictionary.forEach(new TermDictionary.EntryVisitor() {
+        @Override
+        public void visit(TermDictionary.Entry entry) throws IOException {
+          if (buffer[0].length < entry.getLength()) {
+            buffer[0] = new byte[entry.getLength()];
+          }
+
+          dataFiles[entry.getPartition()].read(entry.getPosition(), buffer[0], 0,
+              entry.getLength());
+          out.write(buffer[0], 0, entry.getLength());
+        }
+      });
+      regions[2 * POSTINGS + 1] = out.getPos() - regions[2 * POSTINGS];
+
+      // The lists were written in the order the dictionary is copied in, so their positions are
+      // the running total of their lengths.
+      regions[2 * DICTIONARY] = out.getPos();
+      final TermDictionary.Builder builder = new TermDictionary.Builder(out);
+      final long[] position = {0};
+      dictionary.forEach(new TermDictionary.EntryVisitor() {
+        @Override
+        public void visit(TermDictionary.Entry entry) throws IOException {
+          builder.add(entry.getTerm().getBytes(StandardCharsets.UTF_8), entry.getPartition(),
+              position[0], entry.getLength(), entry.getDf());
+          position[0] += entry.getLength();
+        }
+      });
+      builder.finish();
+      regions[2 * DICTIONARY + 1] = out.getPos() - regions[2 * DICTIONARY];
+
+      int region = SIDE_FILES;
+      for (int i = 0; i < partitions; i++) {
+        copyRegion(fs, IndexManifest.sideFilePath(indexPath, i), out, regions, region++);
+      }
+
+      copyRegion(fs, new Path(indexPath, BitmapIndex.FILE_NAME), out, regions, region++);
+      copyRegion(fs, SnippetStore.indexFile(indexPath), out, regions, region++);
+      copyRegion(fs, SnippetStore.dataFile(indexPath), out, regions, region);
+
+      long tablePosition = out.getPos();
+      out.writeInt(partitions);
+      out.writeLong(manifest.getArticles());
+      out.writeLong(manifest.getCollectionStart());
+      out.writeLong(manifest.getCollectionEnd());
+      for (long value : regions) {
+        out.writeLong(value);
+      }
+
+      out.writeLong(tablePosition);
+    } finally {
+      dictionary.close();
+      for (ByteSource dataFile : dataFiles) {
+        if (dataFile != null) {
+          dataFile.close();
+        }
+      }
+    }
+  }
+
+  // Appends the file, if it exists, as the given region.
+  private static void copyRegion(FileSystem fs, Path path, FSDataOutputStream out, long[] regions,
+      int region) throws IOException {
+    regions[2 * region] = out.getPos();
+    if (fs.exists(path)) {
+      try (InputStream in = fs.open(path)) {
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          out.write(buffer, 0, n);
+        }
+      }
+    }
+
+    regions[2 * region + 1] = out.getPos() - regions[2 * region];
+  }
+
+  private static final class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    String index;
+
+    @Option(name = "-output", metaVar = "[path]", required = true, usage = "packed index path")
+    String output;
+  }
+
+  // The command line tool that packs an index.
+  private static final class Packer extends Configured implements Tool {
+    @Override
+    public int run(String[] argv) throws Exception {
+      final Args args = new Args();
+      CmdLineParser parser = new CmdLineParser(args,
+          ParserProperties.defaults().withUsageWidth(100));
+
+      try {
+        parser.parseArgument(argv);
+      } catch (CmdLineException e) {
+        System.err.println(e.getMessage());
+        parser.printUsage(System.err);
+        return -1;
+      }
+
+      LOG.info("Tool: " + PackedIndex.class.getSimpleName());
+      LOG.info(" - index path: " + args.index);
+      LOG.info(" - output path: " + args.output);
+
+      FileSystem fs = FileSystem.get(getConf());
+      long startTime = System.currentTimeMillis();
+      pack(fs, new Path(args.index), new Path(args.output));
+      LOG.info("Packed " + args.index + " into " + args.output + " ("
+          + fs.getFileStatus(new Path(args.output)).getLen() + " bytes) in "
+          + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+      return 0;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolRunner.run(new Packer(), args);
+  }
+}
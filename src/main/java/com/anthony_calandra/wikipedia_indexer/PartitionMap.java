@@ -0,0 +1,252 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import io.bespin.java.util.Tokenizer;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Places the terms with the most postings explicitly so that every partition (and so every
+// reducer) gets a similar share of the postings; all other terms are hash partitioned as usual.
+// The map is built from a sample of the collection before the index job and stored with the
+// index as _partitions, a text file holding the partition count and then "term\tpartition" lines.
+final class PartitionMap {
+  static final String FILE_NAME = "_partitions";
+  private static final Logger LOG = Logger.getLogger(PartitionMap.class);
+  // The sample is read as this many evenly spaced slices of the collection.
+  private static final int SAMPLE_SLICES = 64;
+
+  private final int partitions;
+  private final Map<String, Integer> assigned;
+  // Sorted hash codes of the assigned terms, so that other terms can be routed from their bytes
+  // without being decoded.
+  private final int[] assignedHashes;
+
+  private PartitionMap(int partitions, Map<String, Integer> assigned) {
+    this.partitions = partitions;
+    this.assigned = assigned;
+    assignedHashes = new int[assigned.size()];
+    int i = 0;
+    for (String term : assigned.keySet()) {
+      assignedHashes[i++] = term.hashCode();
+    }
+
+    Arrays.sort(assignedHashes);
+  }
+
+  // Plain hash partitioning.
+  static PartitionMap hash(int partitions) {
+    return new PartitionMap(partitions, Collections.<String, Integer>emptyMap());
+  }
+
+  int getPartitions() {
+    return partitions;
+  }
+
+  int partition(String term) {
+    Integer partition = assigned.get(term);
+    return partition != null ? partition : TermPartitioner.hashPartition(term, partitions);
+  }
+
+  int partition(byte[] utf8, int start, int length) {
+    int hash = TermPartitioner.stringHash(utf8, start, length);
+    if (Arrays.binarySearch(assignedHashes, hash) >= 0) {
+      Integer partition = assigned.get(new String(utf8, start, length, StandardCharsets.UTF_8));
+      if (partition != null) {
+        return partition;
+      }
+    }
+
+    return (hash & Integer.MAX_VALUE) % partitions;
+  }
+
+  // Estimates the posting volume of every term from about sampleBytes of the collection, read
+  // as evenly spaced slices so that the sample spans the whole collection.
+  static Map<String, Long> sample(FileSystem fs, Path input, long sampleBytes)
+      throws IOException {
+    List<FileStatus> files = new ArrayList<>();
+    if (fs.getFileStatus(input).isFile()) {
+      files.add(fs.getFileStatus(input));
+    } else {
+      // Same files FileInputFormat reads.
+      files.addAll(Arrays.asList(fs.listStatus(input, new PathFilter() {
+        @Override
+        public boolean accept(Path path) {
+          return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+        }
+      })));
+    }
+
+    long total = 0;
+    for (FileStatus file : files) {
+      total += file.getLen();
+    }
+
+    Map<String, Long> volumes = new HashMap<>();
+    long sliceBytes = Math.max(1, Math.min(sampleBytes, total) / SAMPLE_SLICES);
+    Set<String> articleTerms = new HashSet<>();
+    for (int slice = 0; slice < SAMPLE_SLICES; slice++) {
+      long position = total / SAMPLE_SLICES * slice;
+      int file = 0;
+      while (file < files.size() - 1 && position >= files.get(file).getLen()) {
+        position -= files.get(file).getLen();
+        file++;
+      }
+
+      try (FSDataInputStream in = fs.open(files.get(file).getPath())) {
+        in.seek(position);
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (position > 0) {
+          // Skip the partial line the slice starts in.
+          reader.readLine();
+        }
+
+        long read = 0;
+        String line;
+        while (read < sliceBytes && (line = reader.readLine()) != null) {
+          read += line.length() + 1;
+          int tab = line.indexOf('\t');
+          if (tab < 0) {
+            continue;
+          }
+
+          // One posting per distinct term of the article.
+          articleTerms.clear();
+          articleTerms.addAll(Tokenizer.tokenize(line.substring(tab + 1)));
+          for (String term : articleTerms) {
+            Long volume = volumes.get(term);
+            volumes.put(term, volume == null ? 1 : volume + 1);
+          }
+        }
+      }
+    }
+
+    return volumes;
+  }
+
+  // Assigns the heaviestTerms terms with the largest volumes greedily, largest first, to the
+  // partition with the least volume so far (on top of what hash partitioning sends it from the
+  // remaining terms).
+  static PartitionMap build(Map<String, Long> volumes, int partitions, int heaviestTerms) {
+    List<Map.Entry<String, Long>> terms = new ArrayList<>(volumes.entrySet());
+    Collections.sort(terms, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+        int order = Long.compare(e2.getValue(), e1.getValue());
+        return order != 0 ? order : e1.getKey().compareTo(e2.getKey());
+      }
+    });
+
+    int heavy = Math.min(heaviestTerms, terms.size());
+    long[] loads = new long[partitions];
+    long[] hashLoads = new long[partitions];
+    for (int i = 0; i < terms.size(); i++) {
+      Map.Entry<String, Long> term = terms.get(i);
+      int partition = TermPartitioner.hashPartition(term.getKey(), partitions);
+      hashLoads[partition] += term.getValue();
+      if (i >= heavy) {
+        loads[partition] += term.getValue();
+      }
+    }
+
+    Map<String, Integer> assigned = new HashMap<>();
+    for (int i = 0; i < heavy; i++) {
+      int lightest = 0;
+      for (int p = 1; p < partitions; p++) {
+        if (loads[p] < loads[lightest]) {
+          lightest = p;
+        }
+      }
+
+      assigned.put(terms.get(i).getKey(), lightest);
+      loads[lightest] += terms.get(i).getValue();
+    }
+
+    LOG.info(String.format("Sampled largest partition share: %.3f hashed, %.3f mapped",
+        maxShare(hashLoads), maxShare(loads)));
+    return new PartitionMap(partitions, assigned);
+  }
+
+  private static double maxShare(long[] loads) {
+    long max = 0;
+    long total = 0;
+    for (long load : loads) {
+      max = Math.max(max, load);
+      total += load;
+    }
+
+    return total == 0 ? 0 : (double) max / total;
+  }
+
+  void write(FileSystem fs, Path path) throws IOException {
+    try (PrintWriter out = new PrintWriter(
+        new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8))) {
+      out.println(partitions);
+      for (Map.Entry<String, Integer> entry : assigned.entrySet()) {
+        out.println(entry.getKey() + "\t" + entry.getValue());
+      }
+    }
+  }
+
+  static PartitionMap read(FileSystem fs, Path path) throws IOException {
+    try (BufferedReader in = new BufferedReader(
+        new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+      String line = in.readLine();
+      if (line == null) {
+        throw new IOException("Empty partition map: " + path);
+      }
+
+      int partitions = Integer.parseInt(line.trim());
+      Map<String, Integer> assigned = new HashMap<>();
+      while ((line = in.readLine()) != null) {
+        int tab = line.lastIndexOf('\t');
+        int partition = tab < 0 ? -1 : Integer.parseInt(line.substring(tab + 1));
+        if (partition < 0 || partition >= partitions) {
+          throw new IOException("Malformed partition map entry: " + line);
+        }
+
+        assigned.put(line.substring(0, tab), partition);
+      }
+
+      return new PartitionMap(partitions, assigned);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A posting list whose header (and skip data, when the format has it) has been parsed. The blocks
+// themselves stay encoded until a PostingsReader decodes them. Blocks of external lists stay in
+// the side file and are read on demand.
+final class PostingList {
+  // Approximate heap sizes (64-bit JVM, compressed references) of this object, of the ByteBuffer
+  // view of the blocks and of an array header.
+  private static final int OBJECT_SIZE = 64;
+  private static final int BUFFER_SIZE = 48;
+  private static final int ARRAY_HEADER_SIZE = 16;
+  private final ByteBuffer blocks;
+  private final ByteSource sideFile;
+  private final long sideFilePosition;
+  private final long blocksLength;
+  private final int version;
+  private final int df;
+  private final long[] blockLastOffsets;
+  // Relative to the start of the blocks, which can be over 2GB into a side file.
+  private final long[] blockPositions;
+  private final float[] blockMaxTfs;
+  private final float maxTf;
+
+  private PostingList(ByteBuffer blocks, ByteSource sideFile, long sideFilePosition,
+      long blocksLength, int version, int df, long[] blockLastOffsets, long[] blockPositions,
+      float[] blockMaxTfs, float maxTf) {
+    this.blocks = blocks;
+    this.sideFile = sideFile;
+    this.sideFilePosition = sideFilePosition;
+    this.blocksLength = blocksLength;
+    this.version = version;
+    this.df = df;
+    this.blockLastOffsets = blockLastOffsets;
+    this.blockPositions = blockPositions;
+    this.blockMaxTfs = blockMaxTfs;
+    this.maxTf = maxTf;
+  }
+
+  static PostingList parse(ByteBuffer buffer) throws IOException {
+    return parse(buffer, null);
+  }
+
+  // sideFile is the side file of the list's partition, or null if the index has none.
+  static PostingList parse(ByteBuffer buffer, ByteSource sideFile) throws IOException {
+    buffer = buffer.slice();
+    int version = PostingsFormat.VERSION_LEGACY;
+    if (buffer.get(0) == PostingsFormat.FORMAT_MARKER) {
+      buffer.get();
+      version = buffer.get();
+      if (version > PostingsFormat.CURRENT_VERSION) {
+        throw new IOException("Unsupported postings format version: " + version);
+      }
+    }
+
+    // Legacy lists also start with a VInt df, which shares its encoding with VLong.
+    int df = (int) PostingsFormat.readVLong(buffer);
+    if (version < PostingsFormat.VERSION_SKIPS) {
+      // Term frequencies never exceed 1, which is the best bound without skip data.
+      return new PostingList(buffer.slice(), null, 0, buffer.remaining(), version, df, null, null,
+          null, 1.0f);
+    }
+
+    int blockCount = PostingsFormat.blockCount(df);
+    long[] blockLastOffsets = new long[blockCount];
+    long[] blockPositions = new long[blockCount];
+    float[] blockMaxTfs = new float[blockCount];
+    long lastOffset = 0;
+    long position = 0;
+    float maxTf = 0;
+    for (int i = 0; i < blockCount; i++) {
+      lastOffset += PostingsFormat.readVLong(buffer);
+      blockLastOffsets[i] = lastOffset;
+      blockPositions[i] = position;
+      position += PostingsFormat.readVLong(buffer);
+      blockMaxTfs[i] = PostingsFormat.dequantizeTf((int) PostingsFormat.readVLong(buffer));
+      maxTf = Math.max(maxTf, blockMaxTfs[i]);
+    }
+
+    if (version == PostingsFormat.VERSION_EXTERNAL) {
+      if (sideFile == null) {
+        throw new IOException("Posting list refers to a missing postings side file.");
+      }
+
+      long sideFilePosition = PostingsFormat.readVLong(buffer);
+      long blocksLength = PostingsFormat.readVLong(buffer);
+      return new PostingList(null, sideFile, sideFilePosition, blocksLength, version, df,
+          blockLastOffsets, blockPositions, blockMaxTfs, maxTf);
+    }
+
+    return new PostingList(buffer.slice(), null, 0, buffer.remaining(), version, df,
+        blockLastOffsets, blockPositions, blockMaxTfs, maxTf);
+  }
+
+  // Reads only the df from the header of an encoded list.
+  static int readDf(ByteBuffer buffer) {
+    buffer = buffer.slice();
+    if (buffer.get(0) == PostingsFormat.FORMAT_MARKER) {
+      buffer.position(2);
+    }
+
+    return (int) PostingsFormat.readVLong(buffer);
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  int getDf() {
+    return df;
+  }
+
+  int getBlockCount() {
+    return PostingsFormat.blockCount(df);
+  }
+
+  boolean hasSkipData() {
+    return blockLastOffsets != null;
+  }
+
+  long getBlockLastOffset(int block) {
+    return blockLastOffsets[block];
+  }
+
+  long getBlockPosition(int block) {
+    return blockPositions[block];
+  }
+
+  float getBlockMaxTf(int block) {
+    return hasSkipData() ? blockMaxTfs[block] : maxTf;
+  }
+
+  float getMaxTf() {
+    return maxTf;
+  }
+
+  // Approximate heap footprint, used to weigh cached lists: the encoded blocks and the skip data
+  // decoded into arrays, with the overhead of every object holding them.
+  long sizeInBytes() {
+    long bytes = OBJECT_SIZE;
+    if (blocks != null) {
+      bytes += BUFFER_SIZE + blocks.capacity();
+    }
+
+    if (hasSkipData()) {
+      bytes += 3 * ARRAY_HEADER_SIZE + 8L * blockLastOffsets.length + 8L * blockPositions.length
+          + 4L * blockMaxTfs.length;
+    }
+
+    return bytes;
+  }
+
+  boolean isExternal() {
+    return sideFile != null;
+  }
+
+  long getBlocksLength() {
+    return blocksLength;
+  }
+
+  // Readers get their own view so several of them can walk the same list.
+  ByteBuffer blocks() {
+    return blocks.duplicate();
+  }
+
+  // Copies length bytes of an external list's blocks, starting at position within them.
+  void readBlocks(long position, byte[] buffer, int length) throws IOException {
+    sideFile.read(sideFilePosition + position, buffer, 0, length);
+  }
+}
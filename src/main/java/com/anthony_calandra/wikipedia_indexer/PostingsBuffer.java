@@ -0,0 +1,66 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// The postings of one term while an index is being inverted in memory, in increasing offset
+// order. Much smaller than a PostingsWriter for the many terms that only get a few postings.
+final class PostingsBuffer {
+  // Rough heap cost of a posting and of a new term, for memory budgets.
+  static final int POSTING_BYTES = 16;
+  static final int TERM_BYTES = 96;
+
+  long[] offsets;
+  float[] tfs;
+  int[] articleIds;
+  int size;
+
+  PostingsBuffer() {
+    this(4);
+  }
+
+  PostingsBuffer(int capacity) {
+    offsets = new long[capacity];
+    tfs = new float[capacity];
+    articleIds = new int[capacity];
+  }
+
+  void add(long offset, float tf, int articleId) {
+    if (size == offsets.length) {
+      int capacity = Math.max(4, size + (size >> 1));
+      offsets = Arrays.copyOf(offsets, capacity);
+      tfs = Arrays.copyOf(tfs, capacity);
+      articleIds = Arrays.copyOf(articleIds, capacity);
+    }
+
+    offsets[size] = offset;
+    tfs[size] = tf;
+    articleIds[size] = articleId;
+    size++;
+  }
+
+  void writeTo(PostingsWriter writer) throws IOException {
+    for (int i = 0; i < size; i++) {
+      writer.add(offsets[i], tfs[i], articleIds[i]);
+    }
+  }
+}
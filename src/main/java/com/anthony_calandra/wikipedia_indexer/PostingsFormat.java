@@ -0,0 +1,249 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Encoding of a single term's posting list, as stored in the index MapFile values.
+//
+// Indexes written before the block format start directly with a VInt df followed by one
+// (VLong offset gap, compressed float tf, VInt article id) triple per posting. The block format
+// starts with a marker byte that can never begin a non-negative VInt, so both can be told apart:
+//
+//   byte    FORMAT_MARKER
+//   byte    format version
+//   VInt    df
+//   skips   (version 2+) one entry per block: VLong gap between the last offsets of consecutive
+//           blocks, VInt encoded block length in bytes and VInt largest quantized tf in the block
+//   blocks  ceil(df / BLOCK_SIZE) blocks, the last one possibly partial
+//
+// Version 3 lists are too large to keep inline. They have the same header and skips, but instead
+// of the blocks they end with the VLong position and VLong length of the blocks in the
+// partition's side file (postings-r-NNNNN next to part-r-NNNNN). Small lists are still written
+// as version 2.
+//
+// Every block holds three packed columns: offset gaps (the first relative to the last offset of
+// the previous block), quantized term frequencies and article ids. The skip entries let readers
+// jump to any block without decoding the ones before it, and bound the score of every block.
+final class PostingsFormat {
+  static final byte FORMAT_MARKER = (byte) -128;
+  static final int VERSION_LEGACY = 0;
+  static final int VERSION_BLOCKS = 1;
+  static final int VERSION_SKIPS = 2;
+  static final int VERSION_EXTERNAL = 3;
+  static final int CURRENT_VERSION = VERSION_EXTERNAL;
+  static final String SIDE_FILE_PREFIX = "postings-";
+  static final int BLOCK_SIZE = 128;
+
+  private PostingsFormat() {}
+
+  // Term frequencies are kept as the upper 16 bits of the float (rounded), which preserves the
+  // exponent and leaves ~3 significant digits; plenty for ranking.
+  static int quantizeTf(float tf) {
+    return (Float.floatToIntBits(tf) + 0x8000) >>> 16;
+  }
+
+  static float dequantizeTf(int quantizedTf) {
+    return Float.intBitsToFloat(quantizedTf << 16);
+  }
+
+  static int blockCount(int df) {
+    return (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  // Writes n values as a frame of reference (the minimum) plus fixed-width deltas. Deltas that do
+  // not fit in the chosen width are patched afterwards (PFor), so a single outlier such as a huge
+  // offset gap does not blow up the width of the whole block.
+  static void writePacked(DataOutput out, long[] values, int n, long[] scratch)
+      throws IOException {
+    long base = Long.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      base = Math.min(base, values[i]);
+    }
+
+    int maxBits = 0;
+    for (int i = 0; i < n; i++) {
+      scratch[i] = values[i] - base;
+      maxBits = Math.max(maxBits, bitLength(scratch[i]));
+    }
+
+    int width = maxBits;
+    int bestCost = packedBytes(n, maxBits);
+    for (int w = 0; w < maxBits; w++) {
+      int cost = packedBytes(n, w);
+      for (int i = 0; i < n && cost < bestCost; i++) {
+        if (bitLength(scratch[i]) > w) {
+          cost += vLongSize(i) + vLongSize(scratch[i] >>> w);
+        }
+      }
+
+      if (cost < bestCost) {
+        bestCost = cost;
+        width = w;
+      }
+    }
+
+    int exceptions = 0;
+    for (int i = 0; i < n; i++) {
+      if (bitLength(scratch[i]) > width) {
+        exceptions++;
+      }
+    }
+
+    writeVLong(out, base);
+    out.writeByte(width);
+    writeVLong(out, exceptions);
+    packBits(out, scratch, n, width);
+    for (int i = 0; i < n && exceptions > 0; i++) {
+      if (bitLength(scratch[i]) > width) {
+        writeVLong(out, i);
+        writeVLong(out, scratch[i] >>> width);
+      }
+    }
+  }
+
+  static void readPacked(ByteBuffer in, long[] values, int n) {
+    long base = readVLong(in);
+    int width = in.get();
+    int exceptions = (int) readVLong(in);
+    unpackBits(in, values, n, width);
+    for (int i = 0; i < exceptions; i++) {
+      int index = (int) readVLong(in);
+      values[index] |= readVLong(in) << width;
+    }
+
+    for (int i = 0; i < n; i++) {
+      values[i] += base;
+    }
+  }
+
+  // Values are packed least significant bit first.
+  private static void packBits(DataOutput out, long[] values, int n, int width)
+      throws IOException {
+    int current = 0;
+    int currentBits = 0;
+    for (int i = 0; i < n; i++) {
+      long value = values[i];
+      int remaining = width;
+      while (remaining > 0) {
+        int take = Math.min(remaining, 8 - currentBits);
+        current |= (int) (value & ((1 << take) - 1)) << currentBits;
+        value >>>= take;
+        remaining -= take;
+        currentBits += take;
+        if (currentBits == 8) {
+          out.writeByte(current);
+          current = 0;
+          currentBits = 0;
+        }
+      }
+    }
+
+    if (currentBits > 0) {
+      out.writeByte(current);
+    }
+  }
+
+  private static void unpackBits(ByteBuffer in, long[] values, int n, int width) {
+    int current = 0;
+    int currentBits = 0;
+    for (int i = 0; i < n; i++) {
+      long value = 0;
+      int read = 0;
+      while (read < width) {
+        if (currentBits == 0) {
+          current = in.get() & 0xFF;
+          currentBits = 8;
+        }
+
+        int take = Math.min(width - read, currentBits);
+        value |= (long) (current & ((1 << take) - 1)) << read;
+        current >>>= take;
+        currentBits -= take;
+        read += take;
+      }
+
+      values[i] = value;
+    }
+  }
+
+  private static int packedBytes(int n, int width) {
+    return (n * width + 7) / 8;
+  }
+
+  private static int bitLength(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  // Same encoding as WritableUtils.writeVLong, duplicated so the decoder can work directly on a
+  // ByteBuffer instead of wrapping every posting list in streams.
+  static void writeVLong(DataOutput out, long value) throws IOException {
+    if (value >= -112 && value <= 127) {
+      out.writeByte((byte) value);
+      return;
+    }
+
+    int len = -112;
+    if (value < 0) {
+      value ^= -1L;
+      len = -120;
+    }
+
+    for (long tmp = value; tmp != 0; tmp >>= 8) {
+      len--;
+    }
+
+    out.writeByte((byte) len);
+    len = (len < -120) ? -(len + 120) : -(len + 112);
+    for (int idx = len; idx != 0; idx--) {
+      int shift = (idx - 1) * 8;
+      out.writeByte((byte) ((value >> shift) & 0xFF));
+    }
+  }
+
+  static long readVLong(ByteBuffer in) {
+    byte first = in.get();
+    if (first >= -112) {
+      return first;
+    }
+
+    int len = first < -120 ? -119 - first : -111 - first;
+    long value = 0;
+    for (int idx = 0; idx < len - 1; idx++) {
+      value = (value << 8) | (in.get() & 0xFF);
+    }
+
+    return (first < -120) ? (value ^ -1L) : value;
+  }
+
+  static int vLongSize(long value) {
+    if (value >= -112 && value <= 127) {
+      return 1;
+    }
+
+    if (value < 0) {
+      value ^= -1L;
+    }
+
+    return (bitLength(value) + 7) / 8 + 1;
+  }
+}
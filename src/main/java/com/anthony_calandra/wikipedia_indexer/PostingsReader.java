@@ -0,0 +1,170 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Decodes a posting list one block at a time into reusable arrays. Lists written in the legacy
+// per-posting format are decoded into blocks of the same size so callers never see a difference.
+// External lists are read from their side file through a window of whole blocks, so only about
+// WINDOW_BYTES of them are in memory at a time.
+final class PostingsReader {
+  private static final int BLOCK_SIZE = PostingsFormat.BLOCK_SIZE;
+  private static final int WINDOW_BYTES = 64 * 1024;
+  private final PostingList postings;
+  private ByteBuffer buffer;
+  private byte[] window;
+  private long windowStart;
+  private long windowEnd;
+  private final long[] offsets = new long[BLOCK_SIZE];
+  private final long[] scratch = new long[BLOCK_SIZE];
+  private final float[] tfs = new float[BLOCK_SIZE];
+  private final int[] articleIds = new int[BLOCK_SIZE];
+  private DataInputStream legacyInStream;
+  private long lastOffset;
+  private int decoded;
+  private int blockSize;
+
+  PostingsReader(PostingList postings) throws IOException {
+    this.postings = postings;
+    if (postings.isExternal()) {
+      return;
+    }
+
+    this.buffer = postings.blocks();
+    if (postings.getVersion() == PostingsFormat.VERSION_LEGACY) {
+      if (!buffer.hasArray()) {
+        throw new IOException("Legacy postings can only be read from a heap buffer.");
+      }
+
+      legacyInStream = new DataInputStream(new ByteArrayInputStream(
+          buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+    }
+  }
+
+  int getVersion() {
+    return postings.getVersion();
+  }
+
+  int getDf() {
+    return postings.getDf();
+  }
+
+  boolean nextBlock() throws IOException {
+    int df = postings.getDf();
+    if (decoded >= df) {
+      return false;
+    }
+
+    blockSize = Math.min(BLOCK_SIZE, df - decoded);
+    if (postings.getVersion() == PostingsFormat.VERSION_LEGACY) {
+      readLegacyBlock();
+    } else {
+      if (postings.isExternal()) {
+        moveWindow(decoded / BLOCK_SIZE);
+      }
+
+      PostingsFormat.readPacked(buffer, offsets, blockSize);
+      for (int i = 0; i < blockSize; i++) {
+        lastOffset += offsets[i];
+        offsets[i] = lastOffset;
+      }
+
+      PostingsFormat.readPacked(buffer, scratch, blockSize);
+      for (int i = 0; i < blockSize; i++) {
+        tfs[i] = PostingsFormat.dequantizeTf((int) scratch[i]);
+      }
+
+      PostingsFormat.readPacked(buffer, scratch, blockSize);
+      for (int i = 0; i < blockSize; i++) {
+        articleIds[i] = (int) scratch[i];
+      }
+    }
+
+    decoded += blockSize;
+    return true;
+  }
+
+  // Decodes an arbitrary block. Only lists with skip data support this; everything else has to
+  // be walked with nextBlock().
+  void readBlock(int block) throws IOException {
+    if (!postings.isExternal()) {
+      // Inline blocks are a ByteBuffer, so their positions fit an int.
+      buffer.position((int) postings.getBlockPosition(block));
+    }
+
+    lastOffset = block == 0 ? 0 : postings.getBlockLastOffset(block - 1);
+    decoded = block * BLOCK_SIZE;
+    nextBlock();
+  }
+
+  int blockSize() {
+    return blockSize;
+  }
+
+  long[] offsets() {
+    return offsets;
+  }
+
+  float[] tfs() {
+    return tfs;
+  }
+
+  int[] articleIds() {
+    return articleIds;
+  }
+
+  // Points buffer at the given block of an external list, reading the window of blocks that starts
+  // with it unless it is already there.
+  private void moveWindow(int block) throws IOException {
+    long start = postings.getBlockPosition(block);
+    long end = block + 1 < postings.getBlockCount()
+        ? postings.getBlockPosition(block + 1) : postings.getBlocksLength();
+    if (start < windowStart || end > windowEnd || window == null) {
+      long length = Math.max(end - start,
+          Math.min(WINDOW_BYTES, postings.getBlocksLength() - start));
+      if (window == null || window.length < length) {
+        window = new byte[(int) length];
+      }
+
+      postings.readBlocks(start, window, (int) length);
+      buffer = ByteBuffer.wrap(window, 0, (int) length);
+      windowStart = start;
+      windowEnd = start + length;
+    }
+
+    buffer.position((int) (start - windowStart));
+  }
+
+  private void readLegacyBlock() throws IOException {
+    for (int i = 0; i < blockSize; i++) {
+      lastOffset += WritableUtils.readVLong(legacyInStream);
+      offsets[i] = lastOffset;
+      tfs[i] = ArticleRetriever.byteArray2Float(
+          WritableUtils.readCompressedByteArray(legacyInStream));
+      articleIds[i] = WritableUtils.readVInt(legacyInStream);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Accumulates one term's postings (in increasing offset order) and encodes them with
+// PostingsFormat. Instances are reused across terms through reset().
+//
+// With a side file, a list whose encoded blocks outgrow spillBytes is streamed there in chunks
+// of about spillBytes and only its header and skip data are returned by writeTo(), so memory
+// stays bounded by spillBytes plus a few bytes of skip data per block whatever the df.
+final class PostingsWriter {
+  private static final int BLOCK_SIZE = PostingsFormat.BLOCK_SIZE;
+  private final long[] offsets = new long[BLOCK_SIZE];
+  private final long[] tfs = new long[BLOCK_SIZE];
+  private final long[] articleIds = new long[BLOCK_SIZE];
+  private final long[] scratch = new long[BLOCK_SIZE];
+  private final ByteArrayOutputStream blockByteArrayStream = new ByteArrayOutputStream();
+  private final DataOutputStream blockOutStream = new DataOutputStream(blockByteArrayStream);
+  private final ByteArrayOutputStream skipByteArrayStream = new ByteArrayOutputStream();
+  private final DataOutputStream skipOutStream = new DataOutputStream(skipByteArrayStream);
+  private final FSDataOutputStream sideFile;
+  private final int spillBytes;
+  private long sideFileStart = -1;
+  private long blockBytes;
+  private long lastBlockOffset;
+  private int buffered;
+  private int df;
+
+  PostingsWriter() {
+    this(null, Integer.MAX_VALUE);
+  }
+
+  PostingsWriter(FSDataOutputStream sideFile, int spillBytes) {
+    this.sideFile = sideFile;
+    this.spillBytes = spillBytes;
+  }
+
+  void add(long articleOffset, float tf, int articleId) throws IOException {
+    offsets[buffered] = articleOffset;
+    tfs[buffered] = PostingsFormat.quantizeTf(tf);
+    articleIds[buffered] = articleId;
+    buffered++;
+    df++;
+    if (buffered == BLOCK_SIZE) {
+      flushBlock();
+    }
+  }
+
+  int getDf() {
+    return df;
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    if (buffered > 0) {
+      flushBlock();
+    }
+
+    boolean external = sideFileStart >= 0;
+    if (external) {
+      spill();
+    }
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeByte(PostingsFormat.FORMAT_MARKER);
+    dataOut.writeByte(external ? PostingsFormat.VERSION_EXTERNAL : PostingsFormat.VERSION_SKIPS);
+    PostingsFormat.writeVLong(dataOut, df);
+    dataOut.flush();
+    skipByteArrayStream.writeTo(out);
+    if (external) {
+      PostingsFormat.writeVLong(dataOut, sideFileStart);
+      PostingsFormat.writeVLong(dataOut, blockBytes);
+      dataOut.flush();
+    } else {
+      blockByteArrayStream.writeTo(out);
+    }
+  }
+
+  boolean isExternal() {
+    return sideFileStart >= 0;
+  }
+
+  void reset() {
+    blockByteArrayStream.reset();
+    skipByteArrayStream.reset();
+    sideFileStart = -1;
+    blockBytes = 0;
+    lastBlockOffset = 0;
+    buffered = 0;
+    df = 0;
+  }
+
+  private void flushBlock() throws IOException {
+    long previous = lastBlockOffset;
+    long maxTf = 0;
+    for (int i = 0; i < buffered; i++) {
+      long offset = offsets[i];
+      offsets[i] = offset - previous;
+      previous = offset;
+      maxTf = Math.max(maxTf, tfs[i]);
+    }
+
+    int blockStart = blockByteArrayStream.size();
+    PostingsFormat.writePacked(blockOutStream, offsets, buffered, scratch);
+    PostingsFormat.writePacked(blockOutStream, tfs, buffered, scratch);
+    PostingsFormat.writePacked(blockOutStream, articleIds, buffered, scratch);
+    blockOutStream.flush();
+
+    int blockLength = blockByteArrayStream.size() - blockStart;
+    PostingsFormat.writeVLong(skipOutStream, previous - lastBlockOffset);
+    PostingsFormat.writeVLong(skipOutStream, blockLength);
+    PostingsFormat.writeVLong(skipOutStream, maxTf);
+    blockBytes += blockLength;
+    lastBlockOffset = previous;
+    buffered = 0;
+
+    if (sideFile != null && blockByteArrayStream.size() >= spillBytes) {
+      if (sideFileStart < 0) {
+        sideFileStart = sideFile.getPos();
+      }
+
+      spill();
+    }
+  }
+
+  private void spill() throws IOException {
+    blockByteArrayStream.writeTo(sideFile);
+    blockByteArrayStream.reset();
+  }
+}
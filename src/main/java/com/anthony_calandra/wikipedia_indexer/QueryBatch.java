@@ -0,0 +1,222 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a file of RPN queries (one per line, blank lines and # comments skipped) in one JVM and
+// reports throughput and latency percentiles. Workers each own a retriever but share the posting
+// list and result caches, so a term used by many queries in the batch is looked up once as long
+// as it stays cached, and repeated queries are answered from the result cache.
+final class QueryBatch {
+  private static final Logger LOG = Logger.getLogger(QueryBatch.class);
+
+  private final List<String> queries;
+  private final int limit;
+  private final List<Article>[] results;
+  private final String[][] lines;
+  private final long[] latencies;
+  private final AtomicInteger nextQuery = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  @SuppressWarnings("unchecked")
+  private QueryBatch(List<String> queries, int limit) {
+    this.queries = queries;
+    this.limit = limit;
+    this.results = new List[queries.size()];
+    this.lines = new String[queries.size()][];
+    this.latencies = new long[queries.size()];
+  }
+
+  static List<String> readQueries(FileSystem fs, Path path) throws IOException {
+    List<String> queries = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          // Collapse whitespace so queries can go in a tab separated column.
+          queries.add(String.join(" ", line.split("\\s+")));
+        }
+      }
+    }
+
+    return queries;
+  }
+
+  // Opens one retriever per worker and runs every query. Results are written as TSV to output
+  // (if given) in the order of the query file, whatever order the workers finished in.
+  static void run(List<String> queries, String indexPath, String collectionPath, int limit,
+      int workers, long postingsCacheBytes, long resultCacheBytes, ExecutorService fetchExecutor,
+      FileSystem fs, Path output) throws IOException, InterruptedException {
+    WeightedLruCache<String, PostingList> postingsCache =
+        postingsCacheBytes > 0 ? ArticleRetriever.newPostingsCache(postingsCacheBytes) : null;
+    WeightedLruCache<String, List<Article>> resultCache =
+        resultCacheBytes > 0 ? ArticleRetriever.newResultCache(resultCacheBytes) : null;
+    final QueryBatch batch = new QueryBatch(queries, limit);
+    final List<ArticleRetriever> retrievers = new ArrayList<>();
+    QueryMetrics metrics = new QueryMetrics();
+    final Throwable[] error = new Throwable[1];
+    try {
+      for (int i = 0; i < workers; i++) {
+        ArticleRetriever retriever = ArticleRetriever.open(indexPath, collectionPath, limit, fs);
+        retriever.setCaches(postingsCache, resultCache);
+        retriever.setFetchExecutor(fetchExecutor);
+        retriever.setMetrics(metrics);
+        retrievers.add(retriever);
+      }
+
+      long startTime = System.nanoTime();
+      List<Thread> threads = new ArrayList<>();
+      for (final ArticleRetriever retriever : retrievers) {
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              batch.work(retriever);
+            } catch (Throwable e) {
+              // Kept for the calling thread to rethrow, instead of dying with this one.
+              synchronized (error) {
+                if (error[0] == null) {
+                  error[0] = e;
+                }
+              }
+            }
+          }
+        };
+        thread.start();
+        threads.add(thread);
+      }
+
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      long elapsed = System.nanoTime() - startTime;
+      if (error[0] instanceof IOException) {
+        throw (IOException) error[0];
+      } else if (error[0] instanceof RuntimeException) {
+        throw (RuntimeException) error[0];
+      } else if (error[0] instanceof Error) {
+        throw (Error) error[0];
+      } else if (error[0] != null) {
+        throw new IOException("A query worker failed", error[0]);
+      }
+
+      if (output != null) {
+        batch.writeResults(fs, output);
+      }
+
+      batch.printSummary(elapsed, workers);
+      System.out.println(metrics);
+      if (postingsCache != null) {
+        System.out.println("postings cache: " + postingsCache);
+      }
+
+      if (resultCache != null) {
+        System.out.println("result cache: " + resultCache);
+      }
+    } finally {
+      for (ArticleRetriever retriever : retrievers) {
+        retriever.close();
+      }
+    }
+  }
+
+  private void work(ArticleRetriever retriever) throws IOException {
+    int i;
+    while ((i = nextQuery.getAndIncrement()) < queries.size()) {
+      long startTime = System.nanoTime();
+      try {
+        results[i] = retriever.search(queries.get(i), limit);
+        lines[i] = retriever.fetchLines(results[i]);
+      } catch (EmptyStackException e) {
+        LOG.warn("Malformed query on line " + (i + 1) + ": " + queries.get(i));
+        failures.incrementAndGet();
+        continue;
+      }
+
+      latencies[i] = System.nanoTime() - startTime;
+    }
+  }
+
+  private void writeResults(FileSystem fs, Path output) throws IOException {
+    try (PrintWriter out = new PrintWriter(
+        new OutputStreamWriter(fs.create(output, true), StandardCharsets.UTF_8))) {
+      out.println("query\trank\ttf-idf\tArticle ID\tArticle");
+      for (int i = 0; i < queries.size(); i++) {
+        if (results[i] == null) {
+          continue;
+        }
+
+        for (int rank = 0; rank < lines[i].length; rank++) {
+          out.println(queries.get(i) + "\t" + (rank + 1) + "\t" + results[i].get(rank).getTfidf()
+              + "\t" + lines[i][rank]);
+        }
+      }
+    }
+  }
+
+  private void printSummary(long elapsedNanos, int workers) {
+    // Failed queries stop early, so their latencies would only flatter the percentiles.
+    long[] sorted = new long[queries.size()];
+    int n = 0;
+    for (int i = 0; i < queries.size(); i++) {
+      if (results[i] != null) {
+        sorted[n++] = latencies[i];
+      }
+    }
+
+    sorted = Arrays.copyOf(sorted, n);
+    Arrays.sort(sorted);
+    double seconds = elapsedNanos / 1e9;
+    System.out.println(String.format("%d queries (%d failed) with %d workers in %.3fs: %.1f queries/s",
+        queries.size(), failures.get(), workers, seconds, queries.size() / seconds));
+    System.out.println(String.format("latency ms: p50=%.3f p95=%.3f p99=%.3f max=%.3f",
+        percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+        percentile(sorted, 100)));
+  }
+
+  // Nearest-rank percentile of sorted nanosecond latencies, in milliseconds.
+  private static double percentile(long[] sorted, int p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1] / 1e6;
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and per-phase timers of the query path, shared by every retriever of a process. Updates
+// are LongAdders, so threads recording the same metric don't contend. The totals are published as
+// read-only JMX attributes and as Prometheus text.
+final class QueryMetrics implements DynamicMBean {
+  private static final String PREFIX = "wikipedia_indexer_";
+
+  enum Counter {
+    QUERIES("queries run"),
+    RESULT_CACHE_HITS("queries answered from the result cache"),
+    POSTINGS_CACHE_HITS("posting lists found in the postings cache"),
+    TERM_LOOKUPS("terms looked up in the index"),
+    POSTING_BYTES_READ("bytes of posting lists read from the index"),
+    BLOCKS_DECODED("posting blocks decoded"),
+    RESULTS("results returned");
+
+    private final String help;
+
+    Counter(String help) {
+      this.help = help;
+    }
+  }
+
+  // Wall-clock time of each query phase. Posting blocks are decoded lazily while the query is
+  // evaluated, so decode time is part of evaluate time.
+  enum Phase {
+    PLAN("parsing, wildcard expansion and planning"),
+    LOOKUP("looking up dfs and posting lists"),
+    EVALUATE("intersecting, merging and ranking postings into the top results"),
+    DECODE("decoding posting blocks"),
+    FETCH("fetching result lines");
+
+    private final String help;
+
+    Phase(String help) {
+      this.help = help;
+    }
+  }
+
+  private final LongAdder[] counters = newAdders(Counter.values().length);
+  private final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+
+  private static LongAdder[] newAdders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+
+    return adders;
+  }
+
+  void increment(Counter counter, long amount) {
+    counters[counter.ordinal()].add(amount);
+  }
+
+  // Adds the time since startNanos (from System.nanoTime()) to the phase.
+  void record(Phase phase, long startNanos) {
+    phaseNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+  }
+
+  long get(Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  long getNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()].sum();
+  }
+
+  // Registers the metrics with the platform MBean server, replacing any registered before.
+  void register() throws JMException {
+    ObjectName name = new ObjectName("com.anthony_calandra.wikipedia_indexer:type=QueryMetrics");
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    } catch (InstanceAlreadyExistsException e) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+  }
+
+  void writePrometheus(StringBuilder out) {
+    for (Counter counter : Counter.values()) {
+      String name = PREFIX + counter.name().toLowerCase(Locale.ROOT) + "_total";
+      out.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+      out.append("# TYPE ").append(name).append(" counter\n");
+      out.append(name).append(' ').append(get(counter)).append('\n');
+    }
+
+    String name = PREFIX + "query_phase_seconds_total";
+    out.append("# HELP ").append(name).append(" time spent in each query phase\n");
+    out.append("# TYPE ").append(name).append(" counter\n");
+    for (Phase phase : Phase.values()) {
+      out.append(name).append("{phase=\"").append(phase.name().toLowerCase(Locale.ROOT))
+          .append("\"} ").append(getNanos(phase) / 1e9).append('\n');
+    }
+  }
+
+  // Average milliseconds per query spent in each phase.
+  @Override
+  public String toString() {
+    long queries = Math.max(get(Counter.QUERIES), 1);
+    StringBuilder out = new StringBuilder("ms/query:");
+    for (Phase phase : Phase.values()) {
+      out.append(String.format(" %s=%.3f", phase.name().toLowerCase(Locale.ROOT),
+          getNanos(phase) / 1e6 / queries));
+    }
+
+    return out.toString();
+  }
+
+  // Attributes are named after the counters, and the phases with a "Millis" suffix.
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    for (Counter counter : Counter.values()) {
+      if (counter.name().equals(attribute)) {
+        return get(counter);
+      }
+    }
+
+    for (Phase phase : Phase.values()) {
+      if ((phase.name() + "_MILLIS").equals(attribute)) {
+        return getNanos(phase) / 1000000;
+      }
+    }
+
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // Left out, as the interface expects.
+      }
+    }
+
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("read only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature)
+      throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    MBeanAttributeInfo[] attributes =
+        new MBeanAttributeInfo[Counter.values().length + Phase.values().length];
+    int i = 0;
+    for (Counter counter : Counter.values()) {
+      attributes[i++] = new MBeanAttributeInfo(counter.name(), "long", counter.help, true, false,
+          false);
+    }
+
+    for (Phase phase : Phase.values()) {
+      attributes[i++] = new MBeanAttributeInfo(phase.name() + "_MILLIS", "long",
+          "milliseconds " + phase.help, true, false, false);
+    }
+
+    return new MBeanInfo(QueryMetrics.class.getName(), "Query path metrics", attributes, null,
+        new MBeanOperationInfo[0], null);
+  }
+}
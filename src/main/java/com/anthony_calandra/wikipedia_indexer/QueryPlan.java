@@ -0,0 +1,317 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// An RPN query as an expression tree. Nested ANDs and ORs are flattened into one operator with
+// many operands, which keeps the scoring of the binary operators: an AND takes the score of its
+// last operand and an OR the score of the last operand that contains the article. That leaves the
+// planner free to
+//
+//  - drop repeated operands (keeping the last occurrence) and empty OR operands,
+//  - turn an AND with an empty operand into an empty query without reading anything else,
+//  - intersect in increasing df order rather than in the order the query was written, and
+//  - evaluate a subexpression that occurs several times only once, and
+//  - combine frequent terms that have bitmaps with word operations on the bitmaps.
+final class QueryPlan {
+  // Subexpressions with more estimated matches than this are recomputed rather than held in
+  // memory.
+  private static final long MAX_MATERIALIZED = 1 << 20;
+  private static final Node EMPTY = new Node(Type.EMPTY, null, Collections.<Node>emptyList(), 0);
+  private final Node root;
+
+  private enum Type { EMPTY, TERM, AND, OR }
+
+  private static final class Node {
+    private final Type type;
+    private final String term;
+    // For an AND the last operand scores; for an OR later operands take precedence.
+    private final List<Node> operands;
+    // Upper bound of the number of matches.
+    private final long cost;
+    // The node in RPN, which identifies equal subexpressions.
+    private final String key;
+
+    private Node(Type type, String term, List<Node> operands, long cost) {
+      this.type = type;
+      this.term = term;
+      this.operands = operands;
+      this.cost = cost;
+      if (type == Type.TERM) {
+        key = term;
+      } else if (type == Type.EMPTY) {
+        key = "<empty>";
+      } else {
+        StringBuilder rpn = new StringBuilder(operands.get(0).key);
+        for (Node operand : operands.subList(1, operands.size())) {
+          rpn.append(' ').append(operand.key).append(' ').append(type);
+        }
+
+        key = rpn.toString();
+      }
+    }
+  }
+
+  // Provides what the plan reads for a single term.
+  interface TermCursors {
+    DocCursor open(String term) throws IOException;
+
+    // Returns null if the term has no bitmap.
+    DocBitmap bitmap(String term) throws IOException;
+
+    // The article numbering of the bitmaps.
+    SnippetStore articles();
+  }
+
+  private QueryPlan(Node root) {
+    this.root = root;
+  }
+
+  // Throws EmptyStackException if an operator is missing operands. As before, operands left over
+  // at the end are ignored and the last one is the query.
+  static QueryPlan parse(String[] tokens) {
+    Stack<Node> stack = new Stack<>();
+    for (String t : tokens) {
+      if (t.equals("AND") || t.equals("OR")) {
+        Node right = stack.pop();
+        Node left = stack.pop();
+        Type type = Type.valueOf(t);
+        List<Node> operands = new ArrayList<>();
+        flatten(type, left, operands);
+        flatten(type, right, operands);
+        stack.push(new Node(type, null, operands, 0));
+      } else {
+        stack.push(new Node(Type.TERM, t, Collections.<Node>emptyList(), 0));
+      }
+    }
+
+    return new QueryPlan(stack.pop());
+  }
+
+  // The distinct terms the plan reads.
+  Set<String> terms() {
+    Set<String> terms = new LinkedHashSet<>();
+    collectTerms(root, terms);
+    return terms;
+  }
+
+  // Rewrites the plan using the df of its terms; terms missing from dfs are not in the index.
+  QueryPlan optimize(Map<String, Integer> dfs) {
+    return new QueryPlan(optimize(root, dfs));
+  }
+
+  DocCursor open(TermCursors terms) throws IOException {
+    Map<String, Integer> occurrences = new HashMap<>();
+    countOccurrences(root, occurrences);
+    return open(root, terms, occurrences, new HashMap<String, MaterializedCursor.Matches>());
+  }
+
+  @Override
+  public String toString() {
+    return root.key;
+  }
+
+  private static void flatten(Type type, Node node, List<Node> operands) {
+    if (node.type == type) {
+      operands.addAll(node.operands);
+    } else {
+      operands.add(node);
+    }
+  }
+
+  private static void collectTerms(Node node, Set<String> terms) {
+    if (node.type == Type.TERM) {
+      terms.add(node.term);
+    }
+
+    for (Node operand : node.operands) {
+      collectTerms(operand, terms);
+    }
+  }
+
+  private static Node optimize(Node node, Map<String, Integer> dfs) {
+    if (node.type == Type.TERM) {
+      Integer df = dfs.get(node.term);
+      return df == null || df == 0 ? EMPTY : new Node(Type.TERM, node.term, node.operands, df);
+    } else if (node.type == Type.EMPTY) {
+      return node;
+    }
+
+    // Optimizing an operand can leave it with the same operator as its parent, e.g. an OR whose
+    // other operands were all empty.
+    List<Node> flattened = new ArrayList<>();
+    for (Node operand : node.operands) {
+      Node optimized = optimize(operand, dfs);
+      if (optimized.type == Type.EMPTY) {
+        if (node.type == Type.AND) {
+          return EMPTY;
+        }
+
+        continue;
+      }
+
+      flatten(node.type, optimized, flattened);
+    }
+
+    // Only the last occurrence of an operand matters: it either scores the AND or takes
+    // precedence in the OR over the earlier ones.
+    Map<String, Node> distinct = new LinkedHashMap<>();
+    for (Node operand : flattened) {
+      distinct.remove(operand.key);
+      distinct.put(operand.key, operand);
+    }
+
+    List<Node> operands = new ArrayList<>(distinct.values());
+    if (operands.isEmpty()) {
+      return EMPTY;
+    } else if (operands.size() == 1) {
+      return operands.get(0);
+    }
+
+    long cost = 0;
+    if (node.type == Type.AND) {
+      // Everything but the scoring operand only filters, so they are put in a canonical order.
+      Collections.sort(operands.subList(0, operands.size() - 1), new Comparator<Node>() {
+        @Override
+        public int compare(Node n1, Node n2) {
+          int order = Long.compare(n1.cost, n2.cost);
+          return order != 0 ? order : n1.key.compareTo(n2.key);
+        }
+      });
+
+      cost = Long.MAX_VALUE;
+      for (Node operand : operands) {
+        cost = Math.min(cost, operand.cost);
+      }
+    } else {
+      for (Node operand : operands) {
+        cost = cost + operand.cost < 0 ? Long.MAX_VALUE : cost + operand.cost;
+      }
+    }
+
+    return new Node(node.type, null, operands, cost);
+  }
+
+  // Repeated subexpressions are only counted inside once, since they are only opened once.
+  private static void countOccurrences(Node node, Map<String, Integer> occurrences) {
+    if (node.type == Type.AND || node.type == Type.OR) {
+      Integer count = occurrences.get(node.key);
+      occurrences.put(node.key, count == null ? 1 : count + 1);
+      if (count != null) {
+        return;
+      }
+    }
+
+    for (Node operand : node.operands) {
+      countOccurrences(operand, occurrences);
+    }
+  }
+
+  private static DocCursor open(Node node, TermCursors terms, Map<String, Integer> occurrences,
+      Map<String, MaterializedCursor.Matches> materialized) throws IOException {
+    switch (node.type) {
+      case EMPTY:
+        return DocCursor.EMPTY;
+      case TERM:
+        return terms.open(node.term);
+      default:
+        break;
+    }
+
+    Integer count = occurrences.get(node.key);
+    if (count == null || count < 2 || node.cost > MAX_MATERIALIZED) {
+      return openOperator(node, terms, occurrences, materialized);
+    }
+
+    MaterializedCursor.Matches matches = materialized.get(node.key);
+    if (matches == null) {
+      matches = MaterializedCursor.Matches.collect(
+          openOperator(node, terms, occurrences, materialized));
+      materialized.put(node.key, matches);
+    }
+
+    return new MaterializedCursor(matches);
+  }
+
+  private static DocCursor openOperator(Node node, TermCursors terms,
+      Map<String, Integer> occurrences, Map<String, MaterializedCursor.Matches> materialized)
+      throws IOException {
+    // Operators over terms that all have bitmaps are evaluated on the bitmaps.
+    DocBitmap[] bitmaps = new DocBitmap[node.operands.size()];
+    DocCursor[] cursors = new DocCursor[bitmaps.length];
+    for (int i = 0; i < bitmaps.length && node.operands.get(i).type == Type.TERM; i++) {
+      bitmaps[i] = terms.bitmap(node.operands.get(i).term);
+      if (bitmaps[i] == null) {
+        break;
+      } else if (i == bitmaps.length - 1) {
+        for (int j = 0; j < cursors.length; j++) {
+          cursors[j] = terms.open(node.operands.get(j).term);
+        }
+
+        return new BitmapCursor(bitmaps, cursors, node.type == Type.AND, terms.articles());
+      }
+    }
+
+    if (node.type == Type.OR) {
+      DocCursor cursor = open(node.operands.get(0), terms, occurrences, materialized);
+      for (Node operand : node.operands.subList(1, node.operands.size())) {
+        cursor = new OrCursor(cursor, open(operand, terms, occurrences, materialized));
+      }
+
+      return cursor;
+    }
+
+    // The cheapest operand leads the intersection, the last one still scores it.
+    final List<Node> operands = node.operands;
+    Integer[] order = new Integer[operands.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return Long.compare(operands.get(i1).cost, operands.get(i2).cost);
+      }
+    });
+
+    int scorer = 0;
+    for (int i = 0; i < order.length; i++) {
+      cursors[i] = open(operands.get(order[i]), terms, occurrences, materialized);
+      if (order[i] == operands.size() - 1) {
+        scorer = i;
+      }
+    }
+
+    return new ConjunctionCursor(cursors, scorer);
+  }
+}
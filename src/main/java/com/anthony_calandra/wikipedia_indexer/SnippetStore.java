@@ -0,0 +1,289 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// The line previews shown for results, keyed by article offset, so that queries never have to
+// touch the (huge) collection file. The store is a directory with two files:
+//
+//   index  int MAGIC, int VERSION, long reserved, then one (long article offset, long data
+//          position) entry per article in increasing offset order
+//   data   one record per article: unsigned short length followed by the UTF-8 preview
+final class SnippetStore implements Closeable {
+  static final String DIRECTORY_NAME = "snippets";
+  static final int PREVIEW_CHARS = 80;
+  // A UTF-8 character takes at most four bytes, and one extra character tells whether the line
+  // has to be shortened.
+  static final int PREFIX_BYTES = (PREVIEW_CHARS + 1) * 4;
+  private static final String INDEX_FILE_NAME = "index";
+  private static final String DATA_FILE_NAME = "data";
+  private static final int MAGIC = 0x534e4950;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_SIZE = 16;
+  private final ByteSource index;
+  private final ByteSource data;
+  private final long count;
+
+  private SnippetStore(ByteSource index, ByteSource data) {
+    this.index = index;
+    this.data = data;
+    this.count = (index.length() - HEADER_SIZE) / ENTRY_SIZE;
+  }
+
+  static boolean exists(FileSystem fs, Path indexPath) throws IOException {
+    return fs.exists(new Path(new Path(indexPath, DIRECTORY_NAME), INDEX_FILE_NAME));
+  }
+
+  static SnippetStore open(FileSystem fs, Path indexPath) throws IOException {
+    Path indexFile = indexFile(indexPath);
+    // The offset table is binary searched, which is only cheap when it is in memory.
+    ByteSource index = fs instanceof LocalFileSystem
+        ? ByteSource.open(fs, indexFile) : ByteSource.load(fs, indexFile);
+    ByteSource data;
+    try {
+      data = ByteSource.open(fs, dataFile(indexPath));
+    } catch (IOException e) {
+      index.close();
+      throw e;
+    }
+
+    return open(index, data, new Path(indexPath, DIRECTORY_NAME).toString());
+  }
+
+  // Takes ownership of both sources; name describes the store in errors.
+  static SnippetStore open(ByteSource index, ByteSource data, String name) throws IOException {
+    if (index.length() < HEADER_SIZE || index.readLong(0) >>> 32 != MAGIC) {
+      index.close();
+      data.close();
+      throw new IOException("Not a snippet store: " + name);
+    }
+
+    int version = (int) index.readLong(0);
+    if (version > VERSION) {
+      index.close();
+      data.close();
+      throw new IOException("Unsupported snippet store version: " + version);
+    }
+
+    return new SnippetStore(index, data);
+  }
+
+  static Path indexFile(Path indexPath) {
+    return new Path(new Path(indexPath, DIRECTORY_NAME), INDEX_FILE_NAME);
+  }
+
+  static Path dataFile(Path indexPath) {
+    return new Path(new Path(indexPath, DIRECTORY_NAME), DATA_FILE_NAME);
+  }
+
+  // Returns the preview of the article at the given offset or null if it is not in the store.
+  String get(long articleOffset) throws IOException {
+    long article = find(articleOffset);
+    if (article < 0) {
+      return null;
+    }
+
+    long position = index.readLong(HEADER_SIZE + article * ENTRY_SIZE + 8);
+    byte[] length = new byte[2];
+    data.read(position, length, 0, 2);
+    byte[] preview = new byte[((length[0] & 0xFF) << 8) | (length[1] & 0xFF)];
+    data.read(position + 2, preview, 0, preview.length);
+    return new String(preview, StandardCharsets.UTF_8);
+  }
+
+  // Articles are numbered densely in offset order by their entry in the store.
+  long size() {
+    return count;
+  }
+
+  long offset(long article) throws IOException {
+    return index.readLong(HEADER_SIZE + article * ENTRY_SIZE);
+  }
+
+  // The number of the article at the given offset, or -1 if it is not in the store.
+  long find(long articleOffset) throws IOException {
+    long article = ceiling(articleOffset);
+    return article < count && offset(article) == articleOffset ? article : -1;
+  }
+
+  // The number of the first article at or after the given offset, or size() if there is none.
+  long ceiling(long articleOffset) throws IOException {
+    long low = 0;
+    long high = count;
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (offset(mid) < articleOffset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  @Override
+  public void close() throws IOException {
+    index.close();
+    data.close();
+  }
+
+  // Renders the start of a collection line the way results are printed.
+  static String preview(byte[] line, int length) {
+    String d = new String(line, 0, length, StandardCharsets.UTF_8);
+    return d.length() > PREVIEW_CHARS ? d.substring(0, PREVIEW_CHARS) + "..." : d;
+  }
+
+  // Scans the collection once and writes the preview of every line. Offsets are computed the same
+  // way TextInputFormat does, so they match the ones in the postings.
+  static void build(FileSystem fs, Path collectionPath, Path indexPath) throws IOException {
+    build(fs, collectionPath, indexPath, 0, Long.MAX_VALUE);
+  }
+
+  // Only covers the lines in [start, end); start must be at the beginning of a line.
+  static void build(FileSystem fs, Path collectionPath, Path indexPath, long start, long end)
+      throws IOException {
+    Path directory = new Path(indexPath, DIRECTORY_NAME);
+    try (FSDataInputStream in = fs.open(collectionPath);
+         Builder builder = new Builder(fs.create(new Path(directory, INDEX_FILE_NAME), true),
+                                       fs.create(new Path(directory, DATA_FILE_NAME), true))) {
+      in.seek(start);
+      builder.startLine(start);
+      byte[] buffer = new byte[1 << 16];
+      long offset = start;
+      boolean afterCarriageReturn = false;
+      for (int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - offset)); read > 0;
+           read = in.read(buffer, 0, (int) Math.min(buffer.length, end - offset))) {
+        for (int i = 0; i < read; i++, offset++) {
+          byte b = buffer[i];
+          if (b == '\n' && afterCarriageReturn) {
+            // Second half of a "\r\n" terminator.
+            afterCarriageReturn = false;
+            builder.startLine(offset + 1);
+            continue;
+          }
+
+          afterCarriageReturn = b == '\r';
+          if (b == '\n' || b == '\r') {
+            builder.endLine();
+            builder.startLine(offset + 1);
+          } else {
+            builder.append(b);
+          }
+        }
+      }
+
+      builder.endLine();
+    }
+  }
+
+  // Concatenates the stores of indexes covering consecutive parts of the same collection.
+  static void merge(FileSystem fs, List<Path> indexPaths, Path indexPath) throws IOException {
+    Path directory = new Path(indexPath, DIRECTORY_NAME);
+    try (DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+             fs.create(new Path(directory, INDEX_FILE_NAME), true)));
+         OutputStream dataOut = fs.create(new Path(directory, DATA_FILE_NAME), true)) {
+      indexOut.writeInt(MAGIC);
+      indexOut.writeInt(VERSION);
+      indexOut.writeLong(0);
+      long dataPosition = 0;
+      byte[] buffer = new byte[1 << 16];
+      for (Path source : indexPaths) {
+        try (SnippetStore store = open(fs, source)) {
+          for (long i = 0; i < store.count; i++) {
+            indexOut.writeLong(store.offset(i));
+            indexOut.writeLong(dataPosition + store.index.readLong(HEADER_SIZE + i * ENTRY_SIZE + 8));
+          }
+
+          long length = store.data.length();
+          for (long position = 0; position < length; position += buffer.length) {
+            int n = (int) Math.min(buffer.length, length - position);
+            store.data.read(position, buffer, 0, n);
+            dataOut.write(buffer, 0, n);
+          }
+
+          dataPosition += length;
+        }
+      }
+    }
+  }
+
+  private static final class Builder implements Closeable {
+    private final DataOutputStream indexOutStream;
+    private final DataOutputStream dataOutStream;
+    private final byte[] prefix = new byte[PREFIX_BYTES];
+    private int prefixLength;
+    private long lineStart;
+    private long dataPosition;
+
+    private Builder(FSDataOutputStream indexOut, FSDataOutputStream dataOut) throws IOException {
+      indexOutStream = new DataOutputStream(new BufferedOutputStream(indexOut));
+      dataOutStream = new DataOutputStream(new BufferedOutputStream(dataOut));
+      indexOutStream.writeInt(MAGIC);
+      indexOutStream.writeInt(VERSION);
+      indexOutStream.writeLong(0);
+    }
+
+    void startLine(long offset) {
+      lineStart = offset;
+      prefixLength = 0;
+    }
+
+    void append(byte b) {
+      if (prefixLength < prefix.length) {
+        prefix[prefixLength++] = b;
+      }
+    }
+
+    void endLine() throws IOException {
+      if (prefixLength == 0) {
+        return;
+      }
+
+      byte[] preview = preview(prefix, prefixLength).getBytes(StandardCharsets.UTF_8);
+      indexOutStream.writeLong(lineStart);
+      indexOutStream.writeLong(dataPosition);
+      dataOutStream.writeShort(preview.length);
+      dataOutStream.write(preview);
+      dataPosition += 2 + preview.length;
+      prefixLength = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      indexOutStream.close();
+      dataOutStream.close();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.io.IOException;
+
+// Cursor over a single term's postings. Blocks are only decoded when the cursor lands in them;
+// with skip data the target block is found by galloping over the block last offsets, and blocks
+// whose best score is below the threshold are passed over entirely.
+final class TermCursor implements DocCursor {
+  private final PostingList postings;
+  private final PostingsReader reader;
+  private final double idf;
+  private final int blockCount;
+  // Times block decoding when set.
+  private final QueryMetrics metrics;
+  private long[] offsets;
+  private float[] tfs;
+  private int[] articleIds;
+  private int blockSize;
+  private int block = -1;
+  private int index;
+  private long offset = -1;
+
+  TermCursor(PostingList postings, double idf) throws IOException {
+    this(postings, idf, null);
+  }
+
+  TermCursor(PostingList postings, double idf, QueryMetrics metrics) throws IOException {
+    this.postings = postings;
+    this.reader = new PostingsReader(postings);
+    this.idf = idf;
+    this.blockCount = postings.getBlockCount();
+    this.metrics = metrics;
+  }
+
+  int getDf() {
+    return postings.getDf();
+  }
+
+  @Override
+  public long offset() {
+    return offset;
+  }
+
+  @Override
+  public int articleId() {
+    return articleIds[index];
+  }
+
+  @Override
+  public double score() {
+    return (double) tfs[index] * idf;
+  }
+
+  @Override
+  public double maxScore() {
+    return scoreBound(postings.getMaxTf());
+  }
+
+  @Override
+  public long advance(long target, double threshold) throws IOException {
+    if (offset == NO_MORE_DOCS) {
+      return offset;
+    }
+
+    // An unpositioned cursor (offset -1) has no current posting, whatever the target.
+    if (block >= 0 && offset >= target) {
+      if (score() >= threshold) {
+        return offset;
+      }
+
+      target = offset + 1;
+    }
+
+    if (maxScore() < threshold) {
+      return exhaust();
+    }
+
+    int b = Math.max(block, 0);
+    if (postings.hasSkipData()) {
+      b = findBlock(b, target);
+    }
+
+    while (b < blockCount) {
+      if (postings.hasSkipData() && scoreBound(postings.getBlockMaxTf(b)) < threshold) {
+        b++;
+        continue;
+      }
+
+      int i = 0;
+      if (b == block) {
+        i = index;
+      } else {
+        decodeBlock(b);
+      }
+
+      i = findIndex(i, target);
+      while (i < blockSize && (double) tfs[i] * idf < threshold) {
+        i++;
+      }
+
+      if (i < blockSize) {
+        index = i;
+        offset = offsets[i];
+        return offset;
+      }
+
+      b++;
+    }
+
+    return exhaust();
+  }
+
+  // Scores grow with tf unless the idf is negative (a term in nearly every article), in which
+  // case zero is the only cheap bound.
+  private double scoreBound(float tf) {
+    return idf >= 0 ? (double) tf * idf : 0;
+  }
+
+  private void decodeBlock(int b) throws IOException {
+    long startTime = metrics != null ? System.nanoTime() : 0;
+    if (postings.hasSkipData()) {
+      reader.readBlock(b);
+    } else {
+      reader.nextBlock();
+    }
+
+    block = b;
+    index = 0;
+    blockSize = reader.blockSize();
+    offsets = reader.offsets();
+    tfs = reader.tfs();
+    articleIds = reader.articleIds();
+    if (metrics != null) {
+      metrics.record(QueryMetrics.Phase.DECODE, startTime);
+      metrics.increment(QueryMetrics.Counter.BLOCKS_DECODED, 1);
+    }
+  }
+
+  // First block at or after from whose last offset is >= target, or blockCount if none.
+  private int findBlock(int from, long target) {
+    if (postings.getBlockLastOffset(from) >= target) {
+      return from;
+    }
+
+    int low = from;
+    int step = 1;
+    int high = from + step;
+    while (high < blockCount && postings.getBlockLastOffset(high) < target) {
+      low = high;
+      step <<= 1;
+      high = from + step;
+    }
+
+    high = Math.min(high, blockCount);
+    while (low + 1 < high) {
+      int mid = (low + high) >>> 1;
+      if (postings.getBlockLastOffset(mid) < target) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+
+    return high;
+  }
+
+  // First index at or after from within the decoded block whose offset is >= target.
+  private int findIndex(int from, long target) {
+    if (from >= blockSize || offsets[from] >= target) {
+      return from;
+    }
+
+    int low = from;
+    int step = 1;
+    int high = from + step;
+    while (high < blockSize && offsets[high] < target) {
+      low = high;
+      step <<= 1;
+      high = from + step;
+    }
+
+    high = Math.min(high, blockSize);
+    while (low + 1 < high) {
+      int mid = (low + high) >>> 1;
+      if (offsets[mid] < target) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+
+    return high;
+  }
+
+  private long exhaust() {
+    offset = NO_MORE_DOCS;
+    return offset;
+  }
+}
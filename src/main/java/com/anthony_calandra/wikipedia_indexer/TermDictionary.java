@@ -0,0 +1,489 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Every term of an index with the location of its posting list in the partition data files, so
+// a lookup is one positioned read instead of a MapFile index search followed by a scan. Terms are
+// sorted and front coded in blocks of BLOCK_TERMS:
+//
+//   int MAGIC, int VERSION
+//   blocks  per term: VLong shared prefix length (0 for the first term of a block), VLong suffix
+//           length, suffix bytes, VLong partition, VLong position, VLong length, VLong df
+//   table   long position of each block
+//   long table position, long term count
+final class TermDictionary implements Closeable {
+  static final String FILE_NAME = "dictionary";
+  private static final int MAGIC = 0x44494354;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int TRAILER_SIZE = 16;
+  private static final int BLOCK_TERMS = 16;
+  private final ByteSource source;
+  private final long tablePosition;
+  private final int blocks;
+  private final long terms;
+
+  static final class Entry {
+    private final String term;
+    private final int partition;
+    private final long position;
+    private final int length;
+    private final int df;
+
+    private Entry(String term, int partition, long position, int length, int df) {
+      this.term = term;
+      this.partition = partition;
+      this.position = position;
+      this.length = length;
+      this.df = df;
+    }
+
+    String getTerm() {
+      return term;
+    }
+
+    int getPartition() {
+      return partition;
+    }
+
+    // Of the encoded posting list in the partition's MapFile data file.
+    long getPosition() {
+      return position;
+    }
+
+    int getLength() {
+      return length;
+    }
+
+    int getDf() {
+      return df;
+    }
+  }
+
+  private TermDictionary(ByteSource source, long tablePosition, long terms) {
+    this.source = source;
+    this.tablePosition = tablePosition;
+    this.blocks = (int) ((source.length() - TRAILER_SIZE - tablePosition) / 8);
+    this.terms = terms;
+  }
+
+  static boolean exists(FileSystem fs, Path indexPath) throws IOException {
+    return fs.exists(new Path(indexPath, FILE_NAME));
+  }
+
+  static TermDictionary open(FileSystem fs, Path indexPath) throws IOException {
+    Path path = new Path(indexPath, FILE_NAME);
+    // Every lookup binary searches the blocks, which is only cheap when they are in memory.
+    ByteSource source = fs instanceof LocalFileSystem
+        ? ByteSource.open(fs, path) : ByteSource.load(fs, path);
+    return open(source, path.toString());
+  }
+
+  // Takes ownership of source, which name describes in errors.
+  static TermDictionary open(ByteSource source, String name) throws IOException {
+    if (source.length() < HEADER_SIZE + TRAILER_SIZE || source.readLong(0) >>> 32 != MAGIC) {
+      source.close();
+      throw new IOException("Not a term dictionary: " + name);
+    }
+
+    int version = (int) source.readLong(0);
+    if (version > VERSION) {
+      source.close();
+      throw new IOException("Unsupported term dictionary version: " + version);
+    }
+
+    return new TermDictionary(source, source.readLong(source.length() - TRAILER_SIZE),
+        source.readLong(source.length() - 8));
+  }
+
+  long getTerms() {
+    return terms;
+  }
+
+  // Returns null if the term is not in the index.
+  Entry get(String term) throws IOException {
+    byte[] target = term.getBytes(StandardCharsets.UTF_8);
+    int block = findBlock(target);
+    if (block < 0) {
+      return null;
+    }
+
+    BlockReader reader = new BlockReader(block);
+    while (reader.next()) {
+      int order = reader.compareTerm(target, target.length);
+      if (order == 0) {
+        return reader.entry();
+      } else if (order > 0) {
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+  // The limit terms starting with prefix that have the largest df, largest first.
+  List<Entry> expand(String prefix, int limit) throws IOException {
+    byte[] target = prefix.getBytes(StandardCharsets.UTF_8);
+    Comparator<Entry> byDf = new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        int order = Integer.compare(e2.df, e1.df);
+        return order != 0 ? order : e1.term.compareTo(e2.term);
+      }
+    };
+
+    PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, limit),
+        Collections.reverseOrder(byDf));
+    for (int block = Math.max(findBlock(target), 0); block < blocks && limit > 0; block++) {
+      BlockReader reader = new BlockReader(block);
+      while (reader.next()) {
+        if (reader.startsWith(target)) {
+          Entry entry = reader.entry();
+          heap.add(entry);
+          if (heap.size() > limit) {
+            heap.poll();
+          }
+        } else if (reader.compareTerm(target, target.length) > 0) {
+          block = blocks;
+          break;
+        }
+      }
+    }
+
+    List<Entry> matches = new ArrayList<>(heap);
+    Collections.sort(matches, byDf);
+    return matches;
+  }
+
+  interface EntryVisitor {
+    void visit(Entry entry) throws IOException;
+  }
+
+  // Visits every term in order.
+  void forEach(EntryVisitor visitor) throws IOException {
+    for (int block = 0; block < blocks; block++) {
+      BlockReader reader = new BlockReader(block);
+      while (reader.next()) {
+        visitor.visit(reader.entry());
+      }
+    }
+  }
+
+  // Every term with at least minDf articles, in term order.
+  List<Entry> frequentTerms(int minDf) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    for (int block = 0; block < blocks; block++) {
+      BlockReader reader = new BlockReader(block);
+      while (reader.next()) {
+        if (reader.df >= minDf) {
+          entries.add(reader.entry());
+        }
+      }
+    }
+
+    return entries;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // The last block whose first term is not greater than target, or -1 if there is none.
+  private int findBlock(byte[] target) throws IOException {
+    int low = 0;
+    int high = blocks - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      BlockReader reader = new BlockReader(mid);
+      reader.next();
+      if (reader.compareTerm(target, target.length) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return high;
+  }
+
+  private final class BlockReader {
+    private final ByteBuffer buffer;
+    private byte[] term = new byte[64];
+    private int termLength;
+    private int partition;
+    private long position;
+    private int length;
+    private int df;
+
+    BlockReader(int block) throws IOException {
+      long start = source.readLong(tablePosition + 8L * block);
+      long end = block + 1 < blocks ? source.readLong(tablePosition + 8L * (block + 1))
+          : tablePosition;
+      byte[] bytes = new byte[(int) (end - start)];
+      source.read(start, bytes, 0, bytes.length);
+      buffer = ByteBuffer.wrap(bytes);
+    }
+
+    boolean next() {
+      if (!buffer.hasRemaining()) {
+        return false;
+      }
+
+      int shared = (int) PostingsFormat.readVLong(buffer);
+      int suffix = (int) PostingsFormat.readVLong(buffer);
+      if (shared + suffix > term.length) {
+        byte[] grown = new byte[Math.max(shared + suffix, 2 * term.length)];
+        System.arraycopy(term, 0, grown, 0, shared);
+        term = grown;
+      }
+
+      buffer.get(term, shared, suffix);
+      termLength = shared + suffix;
+      partition = (int) PostingsFormat.readVLong(buffer);
+      position = PostingsFormat.readVLong(buffer);
+      length = (int) PostingsFormat.readVLong(buffer);
+      df = (int) PostingsFormat.readVLong(buffer);
+      return true;
+    }
+
+    // Compares the current term with target in unsigned byte order, the order of Text keys.
+    int compareTerm(byte[] target, int targetLength) {
+      return compareBytes(term, termLength, target, targetLength);
+    }
+
+    boolean startsWith(byte[] prefix) {
+      return termLength >= prefix.length && compareBytes(term, prefix.length, prefix, prefix.length) == 0;
+    }
+
+    Entry entry() {
+      return new Entry(new String(term, 0, termLength, StandardCharsets.UTF_8), partition,
+          position, length, df);
+    }
+  }
+
+  private static int compareBytes(byte[] b1, int length1, byte[] b2, int length2) {
+    int n = Math.min(length1, length2);
+    for (int i = 0; i < n; i++) {
+      int order = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+      if (order != 0) {
+        return order;
+      }
+    }
+
+    return length1 - length2;
+  }
+
+  // Reads the keys of every partition MapFile in order and writes the dictionary of the index.
+  // The partitions must be uncompressed, so that a posting list is a plain range of its data file.
+  static void build(FileSystem fs, Configuration conf, Path indexPath, int partitions)
+      throws IOException {
+    PriorityQueue<PartitionReader> readers = new PriorityQueue<>(new Comparator<PartitionReader>() {
+      @Override
+      public int compare(PartitionReader r1, PartitionReader r2) {
+        return r1.key.compareTo(r2.key);
+      }
+    });
+
+    List<PartitionReader> open = new ArrayList<>();
+    try (Builder builder = new Builder(new DataOutputStream(new BufferedOutputStream(
+        fs.create(new Path(indexPath, FILE_NAME), true))))) {
+      for (int i = 0; i < partitions; i++) {
+        PartitionReader reader = new PartitionReader(fs, conf, indexPath, i);
+        open.add(reader);
+        if (reader.next()) {
+          readers.add(reader);
+        }
+      }
+
+      while (!readers.isEmpty()) {
+        PartitionReader reader = readers.poll();
+        builder.add(reader.key.copyBytes(), reader.partition, reader.valuePosition,
+            reader.valueLength, reader.df);
+        if (reader.next()) {
+          readers.add(reader);
+        }
+      }
+    } finally {
+      for (PartitionReader reader : open) {
+        reader.close();
+      }
+    }
+  }
+
+  // Terms must be added in order.
+  static final class Builder implements Closeable {
+    private final DataOutputStream out;
+    private final List<Long> table = new ArrayList<>();
+    private byte[] previous = new byte[0];
+    private long position = HEADER_SIZE;
+    private long terms;
+
+    Builder(DataOutputStream out) throws IOException {
+      this.out = out;
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+
+    void add(byte[] term, int partition, long valuePosition, int length, int df)
+        throws IOException {
+      int shared = 0;
+      if (terms % BLOCK_TERMS == 0) {
+        table.add(position);
+      } else {
+        int n = Math.min(previous.length, term.length);
+        while (shared < n && previous[shared] == term[shared]) {
+          shared++;
+        }
+      }
+
+      writeVLong(shared);
+      writeVLong(term.length - shared);
+      out.write(term, shared, term.length - shared);
+      position += term.length - shared;
+      writeVLong(partition);
+      writeVLong(valuePosition);
+      writeVLong(length);
+      writeVLong(df);
+      previous = term;
+      terms++;
+    }
+
+    private void writeVLong(long value) throws IOException {
+      PostingsFormat.writeVLong(out, value);
+      position += PostingsFormat.vLongSize(value);
+    }
+
+    // Writes the block table and trailer, leaving out open. Returns the length of the dictionary.
+    long finish() throws IOException {
+      for (long block : table) {
+        out.writeLong(block);
+      }
+
+      out.writeLong(position);
+      out.writeLong(terms);
+      out.flush();
+      return position + 8L * table.size() + TRAILER_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+      out.close();
+    }
+  }
+
+  // Reads the keys of a partition with where each value sits and its df. Only the head of a value
+  // is read, with a positioned read, rather than the whole posting list.
+  private static final class PartitionReader implements Closeable {
+    // A record is its length, the length of its key, the key and the value. A sync mark (an escape
+    // and a hash) may precede it.
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SYNC_SIZE = 4 + 16;
+    // A BytesWritable value is its length followed by its bytes. A posting list starts with the
+    // format marker and version, then its df.
+    private static final int VALUE_HEAD_SIZE = 4 + 2 + 9;
+
+    private final Path data;
+    private final SequenceFile.Reader reader;
+    private final FSDataInputStream in;
+    private final int partition;
+    private final Text key = new Text();
+    private final byte[] head = new byte[VALUE_HEAD_SIZE];
+    private long valuePosition;
+    private int valueLength;
+    private int df;
+
+    PartitionReader(FileSystem fs, Configuration conf, Path indexPath, int partition)
+        throws IOException {
+      this.data = new Path(IndexManifest.partitionPath(indexPath, partition), MapFile.DATA_FILE_NAME);
+      this.reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(data));
+      this.partition = partition;
+      if (reader.isCompressed()) {
+        reader.close();
+        throw new IOException("Cannot build a term dictionary over a compressed partition: " + data);
+      }
+
+      try {
+        this.in = fs.open(data);
+      } catch (IOException e) {
+        reader.close();
+        throw e;
+      }
+    }
+
+    boolean next() throws IOException {
+      long start = reader.getPosition();
+      if (!reader.next(key)) {
+        return false;
+      }
+
+      if (reader.syncSeen()) {
+        start += SYNC_SIZE;
+      }
+
+      long valueStart = start + RECORD_HEADER_SIZE + WritableUtils.getVIntSize(key.getLength())
+          + key.getLength();
+      long end = reader.getPosition();
+      int n = (int) Math.min(head.length, end - valueStart);
+      in.readFully(valueStart, head, 0, n);
+      ByteBuffer buffer = ByteBuffer.wrap(head, 0, n);
+      valuePosition = valueStart + 4;
+      valueLength = buffer.getInt();
+      if (valuePosition + valueLength != end) {
+        throw new IOException("Unexpected record layout in " + data + " at " + start);
+      }
+
+      df = PostingList.readDf(buffer);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        in.close();
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Map output key of the index job: a term and the offset of an article containing it. It is
+// serialized as a Text followed by a long, so the shuffle sorts and groups keys on their bytes
+// without deserializing them. Terms sort in Text (UTF-8 byte) order, the order MapFile keys need.
+public final class TermOffsetPair implements WritableComparable<TermOffsetPair> {
+  private final Text term = new Text();
+  private long offset;
+
+  static {
+    WritableComparator.define(TermOffsetPair.class, new Comparator());
+  }
+
+  public TermOffsetPair() {}
+
+  void set(String term, long offset) {
+    this.term.set(term);
+    this.offset = offset;
+  }
+
+  Text getTerm() {
+    return term;
+  }
+
+  long getOffset() {
+    return offset;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    term.write(out);
+    out.writeLong(offset);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    term.readFields(in);
+    offset = in.readLong();
+  }
+
+  @Override
+  public int compareTo(TermOffsetPair other) {
+    int order = term.compareTo(other.term);
+    return order != 0 ? order : Long.compare(offset, other.offset);
+  }
+
+  @Override
+  public int hashCode() {
+    return term.hashCode() * 31 + Long.hashCode(offset);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof TermOffsetPair)) {
+      return false;
+    }
+
+    TermOffsetPair pair = (TermOffsetPair) other;
+    return offset == pair.offset && term.equals(pair.term);
+  }
+
+  @Override
+  public String toString() {
+    return "(" + term + ", " + offset + ")";
+  }
+
+  // Length of the serialized term, including its VInt length prefix.
+  private static int termBytes(byte[] bytes, int start) {
+    try {
+      return WritableUtils.decodeVIntSize(bytes[start]) + WritableComparator.readVInt(bytes, start);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static int compareTerms(byte[] b1, int s1, byte[] b2, int s2) {
+    int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+    int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+    return WritableComparator.compareBytes(b1, s1 + n1, termBytes(b1, s1) - n1,
+                                           b2, s2 + n2, termBytes(b2, s2) - n2);
+  }
+
+  // Sort order: term bytes, then offset.
+  public static final class Comparator extends WritableComparator {
+    public Comparator() {
+      super(TermOffsetPair.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int order = compareTerms(b1, s1, b2, s2);
+      if (order != 0) {
+        return order;
+      }
+
+      return Long.compare(readLong(b1, s1 + termBytes(b1, s1)),
+                          readLong(b2, s2 + termBytes(b2, s2)));
+    }
+  }
+
+  // Grouping order: the term alone, so a reducer gets all of a term's postings in one call.
+  public static final class TermComparator extends WritableComparator {
+    public TermComparator() {
+      super(TermOffsetPair.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return compareTerms(b1, s1, b2, s2);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public int compare(WritableComparable a, WritableComparable b) {
+      return ((TermOffsetPair) a).term.compareTo(((TermOffsetPair) b).term);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+// Decides which index partition holds a term. The builder's partitioner and the retriever's
+// lookups must agree, so the scheme in use is recorded in the index manifest.
+final class TermPartitioner {
+  static final String HASH = "string-hash-v1";
+  // Hash partitioning, except for the terms listed in a PartitionMap stored with the index.
+  static final String MAP = "partition-map-v1";
+
+  private TermPartitioner() {}
+
+  static int hashPartition(String term, int partitions) {
+    return (term.hashCode() & Integer.MAX_VALUE) % partitions;
+  }
+
+  // Same partition as hashPartition(String) for the UTF-8 encoded term, computed without
+  // decoding it: String.hashCode is taken over UTF-16 units, so code points above the BMP
+  // contribute both halves of their surrogate pair.
+  static int hashPartition(byte[] utf8, int start, int length, int partitions) {
+    return (stringHash(utf8, start, length) & Integer.MAX_VALUE) % partitions;
+  }
+
+  // String.hashCode of the UTF-8 encoded string.
+  static int stringHash(byte[] utf8, int start, int length) {
+    int hash = 0;
+    int end = start + length;
+    for (int i = start; i < end; ) {
+      int b = utf8[i] & 0xFF;
+      int codePoint;
+      if (b < 0x80) {
+        codePoint = b;
+        i += 1;
+      } else if (b < 0xE0) {
+        codePoint = (b & 0x1F) << 6 | (utf8[i + 1] & 0x3F);
+        i += 2;
+      } else if (b < 0xF0) {
+        codePoint = (b & 0x0F) << 12 | (utf8[i + 1] & 0x3F) << 6 | (utf8[i + 2] & 0x3F);
+        i += 3;
+      } else {
+        codePoint = (b & 0x07) << 18 | (utf8[i + 1] & 0x3F) << 12 | (utf8[i + 2] & 0x3F) << 6
+            | (utf8[i + 3] & 0x3F);
+        i += 4;
+      }
+
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        hash = 31 * hash + codePoint;
+      } else {
+        hash = 31 * hash + Character.highSurrogate(codePoint);
+        hash = 31 * hash + Character.lowSurrogate(codePoint);
+      }
+    }
+
+    return hash;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A thread-safe LRU cache bounded by the total weight (approximate bytes) of its entries rather
+// than by their number.
+final class WeightedLruCache<K, V> {
+  interface Weigher<K, V> {
+    long weigh(K key, V value);
+  }
+
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Weigher<K, V> weigher;
+  private final long maxWeight;
+  private long weight;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  WeightedLruCache(long maxWeight, Weigher<K, V> weigher) {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  synchronized V get(K key) {
+    V value = entries.get(key);
+    if (value == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+
+    return value;
+  }
+
+  synchronized void put(K key, V value) {
+    long entryWeight = weigher.weigh(key, value);
+    if (entryWeight > maxWeight) {
+      return;
+    }
+
+    V previous = entries.put(key, value);
+    if (previous != null) {
+      weight -= weigher.weigh(key, previous);
+    }
+
+    weight += entryWeight;
+    Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+    while (weight > maxWeight && eldest.hasNext()) {
+      Map.Entry<K, V> entry = eldest.next();
+      weight -= weigher.weigh(entry.getKey(), entry.getValue());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getEvictions() {
+    return evictions;
+  }
+
+  synchronized long getWeight() {
+    return weight;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("entries=%d bytes=%d/%d hits=%d misses=%d evictions=%d",
+        entries.size(), weight, maxWeight, hits, misses, evictions);
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DocBitmapTest {
+  private static final int CHUNK = 1 << 16;
+
+  // Members spread over several chunks: an empty one, sparse ones (arrays) and dense ones
+  // (bitmaps), with the density of each chunk picked at random.
+  private static TreeSet<Integer> randomSet(long seed) {
+    Random random = new Random(seed);
+    TreeSet<Integer> set = new TreeSet<>();
+    for (int chunk = 0; chunk < 8; chunk++) {
+      double density = new double[] {0, 0.001, 0.05, 0.5}[random.nextInt(4)];
+      for (int low = 0; low < CHUNK; low++) {
+        if (random.nextDouble() < density) {
+          set.add(chunk * CHUNK + low);
+        }
+      }
+    }
+
+    return set;
+  }
+
+  private static DocBitmap build(TreeSet<Integer> set) {
+    DocBitmap.Builder builder = new DocBitmap.Builder();
+    for (int member : set) {
+      builder.add(member);
+    }
+
+    return builder.build();
+  }
+
+  private static void checkEquals(TreeSet<Integer> expected, DocBitmap bitmap) {
+    assertEquals(expected.size(), bitmap.size());
+    int next = -1;
+    for (int member : expected) {
+      next = bitmap.next(next + 1);
+      assertEquals(member, next);
+    }
+
+    assertEquals(-1, bitmap.next(next + 1));
+  }
+
+  @Test
+  public void holdsWhatWasAdded() {
+    for (long seed = 0; seed < 8; seed++) {
+      TreeSet<Integer> set = randomSet(seed);
+      DocBitmap bitmap = build(set);
+      checkEquals(set, bitmap);
+      for (int number = 0; number < 8 * CHUNK; number += 97) {
+        assertEquals(set.contains(number), bitmap.contains(number));
+      }
+    }
+  }
+
+  @Test
+  public void nextFindsTheFollowingMember() {
+    TreeSet<Integer> set = randomSet(42);
+    DocBitmap bitmap = build(set);
+    for (int from = 0; from < 8 * CHUNK; from += 1013) {
+      Integer expected = set.ceiling(from);
+      assertEquals(expected == null ? -1 : expected, bitmap.next(from));
+    }
+  }
+
+  @Test
+  public void andMatchesSetIntersection() {
+    for (long seed = 0; seed < 8; seed++) {
+      TreeSet<Integer> left = randomSet(seed);
+      TreeSet<Integer> right = randomSet(seed + 100);
+      TreeSet<Integer> expected = new TreeSet<>(left);
+      expected.retainAll(right);
+      checkEquals(expected, build(left).and(build(right)));
+      checkEquals(expected, build(right).and(build(left)));
+    }
+  }
+
+  @Test
+  public void orMatchesSetUnion() {
+    for (long seed = 0; seed < 8; seed++) {
+      TreeSet<Integer> left = randomSet(seed);
+      TreeSet<Integer> right = randomSet(seed + 100);
+      TreeSet<Integer> expected = new TreeSet<>(left);
+      expected.addAll(right);
+      checkEquals(expected, build(left).or(build(right)));
+      checkEquals(expected, build(right).or(build(left)));
+    }
+  }
+
+  @Test
+  public void operationsWithAnEmptyBitmap() {
+    TreeSet<Integer> set = randomSet(7);
+    DocBitmap empty = new DocBitmap.Builder().build();
+    assertEquals(0, empty.size());
+    assertFalse(empty.contains(0));
+    checkEquals(new TreeSet<Integer>(), build(set).and(empty));
+    checkEquals(set, build(set).or(empty));
+    checkEquals(set, empty.or(build(set)));
+  }
+
+  @Test
+  public void switchesToABitmapPastTheArrayLimit() {
+    // 4097 members in one chunk no longer fit an array.
+    TreeSet<Integer> set = new TreeSet<>();
+    for (int i = 0; i <= 4096; i++) {
+      set.add(3 * CHUNK + 11 * i);
+    }
+
+    DocBitmap bitmap = build(set);
+    checkEquals(set, bitmap);
+    assertTrue(bitmap.contains(3 * CHUNK + 11 * 4096));
+    assertFalse(bitmap.contains(3 * CHUNK + 1));
+  }
+
+  @Test
+  public void roundTripsThroughItsSerializedForm() throws IOException {
+    for (long seed = 0; seed < 8; seed++) {
+      TreeSet<Integer> set = randomSet(seed);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      build(set).write(new DataOutputStream(bytes));
+      ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+      checkEquals(set, DocBitmap.read(in));
+      assertEquals(0, in.remaining());
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostingsWriterTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // Increasing, with gaps of varying width. Every 500th gap is past 2^32.
+  static long offset(int i) {
+    return 1000L + 37L * i + (i % 5) + ((long) (i / 500) << 33);
+  }
+
+  static float tf(int i) {
+    return (i % 7 + 1) / 8.0f;
+  }
+
+  static int articleId(int i) {
+    return 3 * i + (i % 11);
+  }
+
+  static byte[] encode(PostingsWriter writer, int df) throws IOException {
+    for (int i = 0; i < df; i++) {
+      writer.add(offset(i), tf(i), articleId(i));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    return out.toByteArray();
+  }
+
+  // Decodes every block in order and checks it against what was written.
+  static void checkPostings(PostingList list, int df) throws IOException {
+    assertEquals(df, list.getDf());
+    assertEquals(PostingsFormat.blockCount(df), list.getBlockCount());
+    PostingsReader reader = new PostingsReader(list);
+    int i = 0;
+    int block = 0;
+    while (reader.nextBlock()) {
+      for (int j = 0; j < reader.blockSize(); j++, i++) {
+        assertEquals("offset " + i, offset(i), reader.offsets()[j]);
+        assertEquals("tf " + i, PostingsFormat.dequantizeTf(PostingsFormat.quantizeTf(tf(i))),
+            reader.tfs()[j], 0);
+        assertEquals("article " + i, articleId(i), reader.articleIds()[j]);
+      }
+
+      assertEquals(offset(i - 1), list.getBlockLastOffset(block++));
+    }
+
+    assertEquals(df, i);
+  }
+
+  private void checkRoundTrip(int df) throws IOException {
+    byte[] bytes = encode(new PostingsWriter(), df);
+    assertEquals(df, PostingList.readDf(ByteBuffer.wrap(bytes)));
+    PostingList list = PostingList.parse(ByteBuffer.wrap(bytes));
+    assertEquals(PostingsFormat.VERSION_SKIPS, list.getVersion());
+    assertTrue(list.hasSkipData());
+    assertFalse(list.isExternal());
+    checkPostings(list, df);
+  }
+
+  @Test
+  public void roundTripsASinglePosting() throws IOException {
+    checkRoundTrip(1);
+  }
+
+  @Test
+  public void roundTripsAPartialBlock() throws IOException {
+    checkRoundTrip(127);
+  }
+
+  @Test
+  public void roundTripsAFullBlock() throws IOException {
+    checkRoundTrip(PostingsFormat.BLOCK_SIZE);
+  }
+
+  @Test
+  public void roundTripsOnePostingPastABlock() throws IOException {
+    checkRoundTrip(PostingsFormat.BLOCK_SIZE + 1);
+  }
+
+  @Test
+  public void roundTripsManyBlocks() throws IOException {
+    checkRoundTrip(10000);
+  }
+
+  @Test
+  public void writerIsReusableAfterReset() throws IOException {
+    PostingsWriter writer = new PostingsWriter();
+    encode(writer, 300);
+    writer.reset();
+    checkPostings(PostingList.parse(ByteBuffer.wrap(encode(writer, 129))), 129);
+  }
+
+  @Test
+  public void readsBlocksOutOfOrder() throws IOException {
+    int df = 1000;
+    PostingList list = PostingList.parse(ByteBuffer.wrap(encode(new PostingsWriter(), df)));
+    PostingsReader reader = new PostingsReader(list);
+    for (int block : new int[] {5, 1, 7, 0}) {
+      reader.readBlock(block);
+      assertEquals(list.getBlockLastOffset(block), reader.offsets()[reader.blockSize() - 1]);
+      int first = block * PostingsFormat.BLOCK_SIZE;
+      assertEquals(articleId(first), reader.articleIds()[0]);
+    }
+  }
+
+  @Test
+  public void spillsLargeListsToTheSideFile() throws IOException {
+    File file = tmp.newFile("postings-r-00000");
+    int df = 5000;
+    byte[] bytes;
+    try (FSDataOutputStream sideFile = new FSDataOutputStream(new FileOutputStream(file), null)) {
+      // The list should not start at the beginning of the side file.
+      sideFile.write(new byte[123]);
+      PostingsWriter writer = new PostingsWriter(sideFile, 1024);
+      bytes = encode(writer, df);
+      assertTrue(writer.isExternal());
+    }
+
+    try (ByteSource sideFile = ByteSource.map(file)) {
+      PostingList list = PostingList.parse(ByteBuffer.wrap(bytes), sideFile);
+      assertEquals(PostingsFormat.VERSION_EXTERNAL, list.getVersion());
+      assertTrue(list.isExternal());
+      assertEquals(file.length() - 123, list.getBlocksLength());
+      checkPostings(list, df);
+
+      PostingsReader reader = new PostingsReader(list);
+      int last = list.getBlockCount() - 1;
+      reader.readBlock(last);
+      assertEquals(list.getBlockLastOffset(last), reader.offsets()[reader.blockSize() - 1]);
+      reader.readBlock(2);
+      assertEquals(articleId(2 * PostingsFormat.BLOCK_SIZE), reader.articleIds()[0]);
+    }
+  }
+
+  @Test
+  public void keepsSmallListsInlineWithASideFile() throws IOException {
+    File file = tmp.newFile("postings-r-00000");
+    byte[] bytes;
+    try (FSDataOutputStream sideFile = new FSDataOutputStream(new FileOutputStream(file), null)) {
+      PostingsWriter writer = new PostingsWriter(sideFile, 1 << 20);
+      bytes = encode(writer, 200);
+      assertFalse(writer.isExternal());
+    }
+
+    assertEquals(0, file.length());
+    checkPostings(PostingList.parse(ByteBuffer.wrap(bytes)), 200);
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class TermCursorTest {
+  private static final int DF = 1000;
+  private static final int BLOCK_SIZE = PostingsFormat.BLOCK_SIZE;
+
+  // Offsets are multiples of 10. Every tf is 0.25 except at the given index, where it is 1.
+  private static PostingList list(int frequentIndex) throws IOException {
+    PostingsWriter writer = new PostingsWriter();
+    for (int i = 0; i < DF; i++) {
+      writer.add(10L * i, i == frequentIndex ? 1.0f : 0.25f, i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    return PostingList.parse(ByteBuffer.wrap(out.toByteArray()));
+  }
+
+  @Test
+  public void visitsEveryPostingInOrder() throws IOException {
+    TermCursor cursor = new TermCursor(list(-1), 1.0);
+    assertEquals(-1, cursor.offset());
+    long target = 0;
+    for (int i = 0; i < DF; i++) {
+      assertEquals(10L * i, cursor.advance(target, Double.NEGATIVE_INFINITY));
+      assertEquals(i, cursor.articleId());
+      target = cursor.offset() + 1;
+    }
+
+    assertEquals(DocCursor.NO_MORE_DOCS, cursor.advance(target, Double.NEGATIVE_INFINITY));
+    assertEquals(DocCursor.NO_MORE_DOCS, cursor.offset());
+  }
+
+  @Test
+  public void advancesAcrossBlockBoundaries() throws IOException {
+    long lastOfFirstBlock = 10L * (BLOCK_SIZE - 1);
+    long firstOfSecondBlock = 10L * BLOCK_SIZE;
+    long[][] steps = {
+        // target, expected offset
+        {lastOfFirstBlock, lastOfFirstBlock},
+        {lastOfFirstBlock + 1, firstOfSecondBlock},
+        {firstOfSecondBlock, firstOfSecondBlock},
+        // Skips several whole blocks, landing mid-block.
+        {10L * (5 * BLOCK_SIZE + 17) - 3, 10L * (5 * BLOCK_SIZE + 17)},
+        {10L * (6 * BLOCK_SIZE), 10L * (6 * BLOCK_SIZE)},
+        // The last, partial block.
+        {10L * (DF - 1), 10L * (DF - 1)},
+    };
+
+    TermCursor cursor = new TermCursor(list(-1), 1.0);
+    for (long[] step : steps) {
+      assertEquals("advance(" + step[0] + ")", step[1],
+          cursor.advance(step[0], Double.NEGATIVE_INFINITY));
+      assertEquals(step[1] / 10, cursor.articleId());
+    }
+
+    assertEquals(DocCursor.NO_MORE_DOCS, cursor.advance(10L * DF, Double.NEGATIVE_INFINITY));
+  }
+
+  @Test
+  public void jumpsStraightToALaterBlock() throws IOException {
+    for (int block = 0; block < PostingsFormat.blockCount(DF); block++) {
+      TermCursor cursor = new TermCursor(list(-1), 1.0);
+      long first = 10L * block * BLOCK_SIZE;
+      assertEquals(first, cursor.advance(first - 5, Double.NEGATIVE_INFINITY));
+    }
+  }
+
+  @Test
+  public void neverMovesBackwards() throws IOException {
+    TermCursor cursor = new TermCursor(list(-1), 1.0);
+    assertEquals(3000, cursor.advance(3000, Double.NEGATIVE_INFINITY));
+    assertEquals(3000, cursor.advance(10, Double.NEGATIVE_INFINITY));
+    assertEquals(3010, cursor.advance(3001, Double.NEGATIVE_INFINITY));
+  }
+
+  @Test
+  public void skipsPostingsScoringBelowTheThreshold() throws IOException {
+    int frequent = 3 * BLOCK_SIZE + 40;
+    TermCursor cursor = new TermCursor(list(frequent), 2.0);
+    assertEquals(2.0, cursor.maxScore(), 1e-6);
+    assertEquals(10L * frequent, cursor.advance(0, 1.0));
+    assertEquals(2.0, cursor.score(), 1e-6);
+    assertEquals(DocCursor.NO_MORE_DOCS, cursor.advance(cursor.offset() + 1, 1.0));
+  }
+
+  @Test
+  public void returnsTheCurrentPostingIfItStillQualifies() throws IOException {
+    TermCursor cursor = new TermCursor(list(-1), 1.0);
+    assertEquals(500, cursor.advance(500, 0.1));
+    assertEquals(500, cursor.advance(500, 0.1));
+    // Now below the threshold, so the cursor moves on and runs out.
+    assertEquals(DocCursor.NO_MORE_DOCS, cursor.advance(500, 0.5));
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2019 Anthony Calandra
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.anthony_calandra.wikipedia_indexer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TermDictionaryTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // ASCII, so that string order is byte order. Many terms share long prefixes with the one before.
+  private static TreeMap<String, Integer> terms(int n) {
+    TreeMap<String, Integer> terms = new TreeMap<>();
+    for (int i = 0; i < n; i++) {
+      String term = "b" + Integer.toString(i * 7919 % 1000, 3);
+      terms.put(term, 1 + i * 31 % 97);
+    }
+
+    return terms;
+  }
+
+  private static long position(String term) {
+    return 100L * term.hashCode() & 0xffffffffffL;
+  }
+
+  private TermDictionary write(TreeMap<String, Integer> terms) throws IOException {
+    File file = tmp.newFile();
+    try (TermDictionary.Builder builder =
+        new TermDictionary.Builder(new DataOutputStream(new FileOutputStream(file)))) {
+      for (Map.Entry<String, Integer> term : terms.entrySet()) {
+        builder.add(term.getKey().getBytes(StandardCharsets.UTF_8), term.getKey().length() % 3,
+            position(term.getKey()), term.getKey().length() * 5, term.getValue());
+      }
+    }
+
+    return TermDictionary.open(ByteSource.map(file), file.getPath());
+  }
+
+  private static void checkEntry(String term, int df, TermDictionary.Entry entry) {
+    assertNotNull(term, entry);
+    assertEquals(term, entry.getTerm());
+    assertEquals(term.length() % 3, entry.getPartition());
+    assertEquals(position(term), entry.getPosition());
+    assertEquals(term.length() * 5, entry.getLength());
+    assertEquals(df, entry.getDf());
+  }
+
+  @Test
+  public void getsEveryTerm() throws IOException {
+    TreeMap<String, Integer> terms = terms(300);
+    try (TermDictionary dictionary = write(terms)) {
+      assertEquals(terms.size(), dictionary.getTerms());
+      for (Map.Entry<String, Integer> term : terms.entrySet()) {
+        checkEntry(term.getKey(), term.getValue(), dictionary.get(term.getKey()));
+      }
+    }
+  }
+
+  @Test
+  public void missesTermsNotInTheDictionary() throws IOException {
+    TreeMap<String, Integer> terms = terms(300);
+    try (TermDictionary dictionary = write(terms)) {
+      assertNull(dictionary.get(""));
+      assertNull(dictionary.get("a"));
+      assertNull(dictionary.get("b"));
+      assertNull(dictionary.get("c"));
+      for (String term : terms.keySet()) {
+        assertNull(dictionary.get(term + "x"));
+        assertNull(dictionary.get(term.substring(0, term.length() - 1) + "9"));
+      }
+    }
+  }
+
+  @Test
+  public void visitsEveryTermInOrder() throws IOException {
+    TreeMap<String, Integer> terms = terms(300);
+    final List<TermDictionary.Entry> entries = new ArrayList<>();
+    try (TermDictionary dictionary = write(terms)) {
+      dictionary.forEach(new TermDictionary.EntryVisitor() {
+        @Override
+        public void visit(TermDictionary.Entry entry) {
+          entries.add(entry);
+        }
+      });
+    }
+
+    assertEquals(terms.size(), entries.size());
+    int i = 0;
+    for (Map.Entry<String, Integer> term : terms.entrySet()) {
+      checkEntry(term.getKey(), term.getValue(), entries.get(i++));
+    }
+  }
+
+  @Test
+  public void expandsPrefixesByDf() throws IOException {
+    final TreeMap<String, Integer> terms = terms(300);
+    try (TermDictionary dictionary = write(terms)) {
+      for (String prefix : new String[] {"b", "b1", "b12", "b2101", "b3", ""}) {
+        for (int limit : new int[] {0, 1, 5, 1000}) {
+          List<String> expected = new ArrayList<>();
+          for (String term : terms.keySet()) {
+            if (term.startsWith(prefix)) {
+              expected.add(term);
+            }
+          }
+
+          Collections.sort(expected, new Comparator<String>() {
+            @Override
+            public int compare(String t1, String t2) {
+              int order = Integer.compare(terms.get(t2), terms.get(t1));
+              return order != 0 ? order : t1.compareTo(t2);
+            }
+          });
+
+          expected = expected.subList(0, Math.min(limit, expected.size()));
+          List<String> actual = new ArrayList<>();
+          for (TermDictionary.Entry entry : dictionary.expand(prefix, limit)) {
+            actual.add(entry.getTerm());
+          }
+
+          assertEquals(prefix + " " + limit, expected, actual);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void findsFrequentTerms() throws IOException {
+    TreeMap<String, Integer> terms = terms(300);
+    try (TermDictionary dictionary = write(terms)) {
+      List<String> expected = new ArrayList<>();
+      for (Map.Entry<String, Integer> term : terms.entrySet()) {
+        if (term.getValue() >= 50) {
+          expected.add(term.getKey());
+        }
+      }
+
+      List<String> actual = new ArrayList<>();
+      for (TermDictionary.Entry entry : dictionary.frequentTerms(50)) {
+        actual.add(entry.getTerm());
+      }
+
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException {
+    File file = tmp.newFile();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(new byte[64]);
+    }
+
+    TermDictionary.open(ByteSource.map(file), file.getPath());
+  }
+
+  // Enough records over two partitions that the data files have sync marks.
+  @Test
+  public void buildsFromThePartitions() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path indexPath = new Path(tmp.newFolder().getPath());
+    TreeMap<String, Integer> terms = terms(1000);
+    for (int partition = 0; partition < 2; partition++) {
+      try (MapFile.Writer out = new MapFile.Writer(conf,
+          IndexManifest.partitionPath(indexPath, partition),
+          MapFile.Writer.keyClass(Text.class), MapFile.Writer.valueClass(BytesWritable.class),
+          MapFile.Writer.compression(SequenceFile.CompressionType.NONE))) {
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+          if ((term.getKey().hashCode() & 1) == partition) {
+            byte[] value = PostingsWriterTest.encode(new PostingsWriter(), term.getValue());
+            out.append(new Text(term.getKey()), new BytesWritable(value));
+          }
+        }
+      }
+    }
+
+    TermDictionary.build(fs, conf, indexPath, 2);
+    try (TermDictionary dictionary = TermDictionary.open(fs, indexPath)) {
+      assertEquals(terms.size(), dictionary.getTerms());
+      ByteSource[] data = new ByteSource[2];
+      for (int partition = 0; partition < 2; partition++) {
+        data[partition] = ByteSource.open(fs, new Path(
+            IndexManifest.partitionPath(indexPath, partition), MapFile.DATA_FILE_NAME));
+      }
+
+      try {
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+          TermDictionary.Entry entry = dictionary.get(term.getKey());
+          assertNotNull(term.getKey(), entry);
+          assertEquals((term.getKey().hashCode() & 1), entry.getPartition());
+          assertEquals(term.getValue().intValue(), entry.getDf());
+          byte[] value = new byte[entry.getLength()];
+          data[entry.getPartition()].read(entry.getPosition(), value, 0, value.length);
+          PostingsWriterTest.checkPostings(PostingList.parse(ByteBuffer.wrap(value)),
+              term.getValue());
+        }
+      } finally {
+        for (ByteSource source : data) {
+          if (source != null) {
+            source.close();
+          }
+        }
+      }
+    }
+  }
+}